@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.bitcoin.osgi.dao.StatementTimingCollector.LatencyHistogram;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs tasks on one single threaded partition per account hash: tasks for a given account run in submission order,
+ * tasks for different accounts run in parallel.
+ * <p/>
+ * The submitter waits for its task to complete and gets its failure back, so a Kill Bill bus event is only acknowledged
+ * once it has been processed. When a partition queue is full, or the executor has been stopped, the task is rejected
+ * with a {@link RejectedExecutionException} and the bus redelivers the event later.
+ */
+public class AccountPartitionedExecutor {
+
+    private final String name;
+    private final List<ThreadPoolExecutor> partitions;
+    private final LatencyHistogram latency;
+    private final AtomicLong submitted;
+    private final AtomicLong rejected;
+    private final AtomicLong failed;
+
+    public AccountPartitionedExecutor(final String name, final int nbPartitions, final int queueSize) {
+        this.name = name;
+        this.partitions = new ArrayList<ThreadPoolExecutor>(nbPartitions);
+        this.latency = new LatencyHistogram();
+        this.submitted = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.failed = new AtomicLong();
+
+        for (int i = 0; i < nbPartitions; i++) {
+            partitions.add(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                  new ArrayBlockingQueue<Runnable>(queueSize),
+                                                  new ThreadFactoryBuilder().setNameFormat(name + "-" + i).setDaemon(true).build(),
+                                                  new ThreadPoolExecutor.AbortPolicy()));
+        }
+    }
+
+    /**
+     * Runs the task on the partition of the account and waits for it to complete.
+     *
+     * @throws RejectedExecutionException if the partition is full or the executor has been stopped
+     * @throws RuntimeException           the failure of the task, if any
+     */
+    public void execute(final UUID accountId, final Runnable task) {
+        submitted.incrementAndGet();
+        final long startNanos = System.nanoTime();
+        final FutureTask<Void> future = new FutureTask<Void>(task, null);
+        try {
+            partitionOf(accountId).execute(future);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Executor " + name + " rejected task for account " + accountId, e);
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.incrementAndGet();
+            throw new RejectedExecutionException("Interrupted while waiting for task of account " + accountId + " in " + name, e);
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            latency.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public void stop() {
+        for (final ThreadPoolExecutor partition : partitions) {
+            partition.shutdown();
+        }
+        for (final ThreadPoolExecutor partition : partitions) {
+            try {
+                partition.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private ThreadPoolExecutor partitionOf(final UUID accountId) {
+        final int partition = accountId == null ? 0 : (accountId.hashCode() & Integer.MAX_VALUE) % partitions.size();
+        return partitions.get(partition);
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (final ThreadPoolExecutor partition : partitions) {
+            depth += partition.getQueue().size();
+        }
+        return depth;
+    }
+
+    public int getMaxPartitionQueueDepth() {
+        int depth = 0;
+        for (final ThreadPoolExecutor partition : partitions) {
+            depth = Math.max(depth, partition.getQueue().size());
+        }
+        return depth;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountPartitionedExecutor{" +
+               "partitions=" + partitions.size() +
+               ", queueDepth=" + getQueueDepth() +
+               ", maxPartitionQueueDepth=" + getMaxPartitionQueueDepth() +
+               ", submitted=" + submitted +
+               ", rejected=" + rejected +
+               ", failed=" + failed +
+               ", latency={" + latency +
+               "}}";
+    }
+}
@@ -18,128 +18,459 @@
 package org.killbill.billing.plugin.bitcoin.osgi;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.ForwardDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.bitcoin.core.AbstractWalletEventListener;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.InsufficientMoneyException;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Empties the wallet to the configured bank address, or splits the funds between the weighted forward destinations.
+ * <p/>
+ * The balance is checked once per forward interval, and also whenever the wallet receives coins: as soon as it
+ * reaches the minimum forward balance a sweep is scheduled after the debounce delay, so that a burst of payments
+ * ends up in a single transaction. Coins that only become spendable once confirmed are picked up by the periodic
+ * check, wallet changes (fired on every confidence change) do not trigger a balance check. Sweeps run on a single thread, at most one is pending at any time. How the funds
+ * are spent is up to the configured {@link SweepStrategy}. Each sweep transaction is recorded in the forward ledger
+ * as soon as it is committed, and no sweep starts until the previous ones have the minimum number of confirmations.
+ * A transaction that could not be recorded counts as in flight: sweeps stop until its ledger entry has been written.
+ * Such entries only live in memory, so before the first sweep the wallet is scanned for forward transactions (spending
+ * our coins to the destinations only) missing from the ledger, e.g. because of a restart.
+ */
 public class BankForwarder {
 
-
     private final static Logger log = LoggerFactory.getLogger(BankForwarder.class);
 
     private final static long BTC_TO_SATOSHI = (100L * 1000L * 1000L);
 
-    private volatile boolean isRunning;
-    private volatile boolean isShuttingDown;
+    private final Wallet wallet;
+    private final NetworkParameters params;
+    private final List<ForwardDestination> destinations;
+    private final Set<Address> destinationAddresses;
+    private final long minForwardBalance;
+    private final long forwardIntervalMs;
+    private final long debounceMs;
+    private final int minConfirmations;
+    private final SweepStrategy sweepStrategy;
+    private final ForwardDao forwardDao;
 
-    private final Thread forwarder;
-    private final String bankHash;
+    private final ScheduledExecutorService executor;
+    private final WalletEventListener walletListener;
+    private final Queue<ForwardRecord> unrecordedForwards;
+    private final AtomicBoolean isSweepScheduled;
+    private final AtomicLong sweeps;
+    private final AtomicLong triggeredSweeps;
+    private final AtomicLong forwardedSatoshis;
+    private final AtomicLong inFlightSkips;
+    private final AtomicLong failures;
 
-    public BankForwarder(final BitcoinConfig config, final Wallet wallet, final NetworkParameters params) {
+    private volatile boolean isRunning;
+    // Whether the forwards missing from the ledger have been looked up in the wallet
+    private boolean isRecovered;
 
+    public BankForwarder(final BitcoinConfig config, final Wallet wallet, final NetworkParameters params, final ForwardDao forwardDao) {
+        this.wallet = wallet;
+        this.forwardDao = forwardDao;
+        this.params = params;
+        this.destinations = parseDestinations(getDestinations(config), params);
+        this.destinationAddresses = getDestinationAddresses(destinations);
+        this.minForwardBalance = config.getMinForwardBalance();
+        this.forwardIntervalMs = config.getForwardBankInterval().getMillis();
+        this.debounceMs = config.getForwardDebounce().getMillis();
+        this.minConfirmations = config.getForwardMinConfirmations();
+        this.sweepStrategy = createSweepStrategy(config);
+        final ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("bitcoin-bank-forwarder-%d").setDaemon(true).build());
+        // On stop, the pending debounced sweep is dropped while a running sweep completes
+        scheduledExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = scheduledExecutor;
+        this.walletListener = new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance) {
+                maybeScheduleSweep();
+            }
+        };
+        this.unrecordedForwards = new ConcurrentLinkedQueue<ForwardRecord>();
+        this.isSweepScheduled = new AtomicBoolean(false);
+        this.sweeps = new AtomicLong();
+        this.triggeredSweeps = new AtomicLong();
+        this.forwardedSatoshis = new AtomicLong();
+        this.inFlightSkips = new AtomicLong();
+        this.failures = new AtomicLong();
         this.isRunning = false;
-        this.isShuttingDown = false;
-        this.bankHash = config.getForwardBankHash();
-
-        // Create forwarder thread if there is some target bank to forward the money to
-        this.forwarder = this.bankHash != null ? new Thread(new Runnable() {
+        this.isRecovered = false;
+    }
 
-            private long nextForwardTime = System.currentTimeMillis();
+    public void start() {
+        // Nothing to do if there is no target bank to forward the money to
+        if (destinations.isEmpty() || isRunning) {
+            return;
+        }
 
+        log.info("Starting bank forwarder to " + destinations);
+        isRunning = true;
+        wallet.addEventListener(walletListener);
+        executor.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
+                doTransfer();
+            }
+        }, 0, forwardIntervalMs, TimeUnit.MILLISECONDS);
+    }
 
-                isRunning = true;
-
-                log.info("Starting bank forwarder thread");
-
-                synchronized (forwarder) {
-                    do {
-                        if (isShuttingDown) {
-                            break;
-                        }
-
-                        long remaingSleepTime = nextForwardTime - System.currentTimeMillis();
-                        if (remaingSleepTime <= 0) {
-                            doTransfer();
-                            nextForwardTime = System.currentTimeMillis() + config.getForwardBankInterval().getMillis();
-                        } else {
-                            try {
-                                forwarder.wait(remaingSleepTime);
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
-                        }
-                    } while (!isShuttingDown);
-
-                    // reset running and notify stop thread.
-                    isRunning = false;
-
-                    log.info("Stopping bank forwarder thread...");
-
-                    synchronized (forwarder) {
-                        forwarder.notify();
-                    }
-                }
+    public void stop() {
+        if (!isRunning) {
+            return;
+        }
+
+        log.info("Stopping bank forwarder...");
+        isRunning = false;
+        wallet.removeEventListener(walletListener);
+        // Not interrupted: a sweep that is running records its broadcast transactions before the thread exits
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Bank forwarder sweep still running after 30s");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void maybeScheduleSweep() {
+        if (!isRunning || isSweepScheduled.get() || wallet.getBalance().longValue() < minForwardBalance) {
+            return;
+        }
+        if (isSweepScheduled.compareAndSet(false, true)) {
+            triggeredSweeps.incrementAndGet();
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    doTransfer();
+                }
+            }, debounceMs, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            private void doTransfer() {
-                try {
-                    final BigInteger balance = wallet.getBalance();
-                    log.info("Current wallet current balance = " + balance + " satoshis ( ~ " + (balance.doubleValue() / BTC_TO_SATOSHI) + " BTC) ");
+    private void doTransfer() {
+        // Balance changes from now on need a new sweep
+        isSweepScheduled.set(false);
+        if (!isRunning) {
+            return;
+        }
+        try {
+            final BigInteger balance = wallet.getBalance();
+            log.info("Current wallet current balance = " + balance + " satoshis ( ~ " + (balance.doubleValue() / BTC_TO_SATOSHI) + " BTC) ");
 
-                    if (balance.longValue() < config.getMinForwardBalance()) {
-                        return;
-                    }
+            if (balance.longValue() < minForwardBalance || isForwardInFlight()) {
+                return;
+            }
 
-                    final Address output = new Address(params, bankHash);
-                    final Wallet.SendRequest req = Wallet.SendRequest.emptyWallet(output);
-                    final Wallet.SendResult result = wallet.sendCoins(req);
+            sweepStrategy.sweep(wallet, destinations, new SweepStrategy.Listener() {
+                @Override
+                public void onSent(final Wallet.SendResult result) {
+                    sweeps.incrementAndGet();
                     log.info("Emptying wallet txHash = " + result.tx.getHash() + ",  tx = " + result.tx.toString());
-                } catch (AddressFormatException e) {
-                    log.warn("Failed to empty wallet to target address " + bankHash, e);
-                } catch (InsufficientMoneyException e) {
-                    log.warn("Not enough money!", e);
+                    recordForward(result.tx);
                 }
+            });
+        } catch (InsufficientMoneyException e) {
+            failures.incrementAndGet();
+            log.warn("Not enough money!", e);
+        } catch (RuntimeException e) {
+            // Would otherwise cancel the periodic check
+            failures.incrementAndGet();
+            log.warn("Failed to empty wallet to target addresses " + destinations, e);
+        }
+    }
+
+    // Refreshes the depth of the previous forwards, a new sweep only starts once they are all confirmed
+    private boolean isForwardInFlight() {
+        if (!isRecovered && !recoverUnrecordedForwards()) {
+            inFlightSkips.incrementAndGet();
+            return true;
+        }
+        if (!writeUnrecordedForwards()) {
+            inFlightSkips.incrementAndGet();
+            log.info("Not forwarding funds while " + unrecordedForwards.size() + " forward transactions are missing from the ledger");
+            return true;
+        }
+
+        final List<Forward> inFlight = forwardDao.getInFlightForwards(minConfirmations);
+        if (inFlight.isEmpty()) {
+            return false;
+        }
+
+        final Map<Forward, Integer> updatedDepths = new HashMap<Forward, Integer>();
+        int nbInFlight = 0;
+        for (final Forward forward : inFlight) {
+            final Transaction tx = wallet.getTransaction(new Sha256Hash(forward.getBtcTxHash()));
+            final int depth;
+            if (tx == null || tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD) {
+                log.warn("Forward transaction " + forward.getBtcTxHash() + " is dead");
+                depth = -1;
+            } else {
+                depth = tx.getConfidence().getDepthInBlocks();
+            }
+            if (depth != forward.getConfirmationDepth()) {
+                updatedDepths.put(forward, depth);
+            }
+            if (depth >= 0 && depth < minConfirmations) {
+                nbInFlight++;
             }
-        }) : null;
+        }
+        forwardDao.updateConfirmationDepths(updatedDepths, new DateTime(DateTimeZone.UTC));
 
+        if (nbInFlight > 0) {
+            inFlightSkips.incrementAndGet();
+            log.info("Not forwarding funds while " + nbInFlight + " forward transactions are unconfirmed");
+            return true;
+        }
+        return false;
     }
 
-    public void start() {
-        if (!isRunning && forwarder != null) {
-            isShuttingDown = false;
-            forwarder.start();
+    // Queues the forward transactions of the wallet missing from the ledger, oldest first
+    @VisibleForTesting
+    boolean recoverUnrecordedForwards() {
+        final List<Transaction> forwardTxs = new ArrayList<Transaction>();
+        for (final Transaction tx : wallet.getTransactions(false)) {
+            if (isForward(tx)) {
+                forwardTxs.add(tx);
+            }
+        }
+        Collections.sort(forwardTxs, new Comparator<Transaction>() {
+            @Override
+            public int compare(final Transaction tx1, final Transaction tx2) {
+                return tx1.getUpdateTime().compareTo(tx2.getUpdateTime());
+            }
+        });
+
+        final List<ForwardRecord> missing = new ArrayList<ForwardRecord>();
+        try {
+            for (final Transaction tx : forwardTxs) {
+                if (forwardDao.getByBtcTransactionId(tx.getHashAsString()) == null) {
+                    missing.add(new ForwardRecord(tx, new DateTime(tx.getUpdateTime()).toDateTime(DateTimeZone.UTC)));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to look up forward transactions in the ledger, not forwarding funds until it succeeds", e);
+            return false;
+        }
+
+        if (!missing.isEmpty()) {
+            log.warn("Found " + missing.size() + " forward transactions missing from the ledger");
         }
+        unrecordedForwards.addAll(missing);
+        isRecovered = true;
+        return true;
     }
 
-    public void stop() {
+    // Spends our coins, and pays the destinations only (besides ourselves)
+    private boolean isForward(final Transaction tx) {
+        if (tx.getValueSentFromMe(wallet).signum() <= 0) {
+            return false;
+        }
 
-        if (!isRunning || forwarder == null) {
-            return;
+        boolean paysDestination = false;
+        for (final TransactionOutput output : tx.getOutputs()) {
+            if (output.isMine(wallet)) {
+                continue;
+            }
+            final Address address = getAddress(output);
+            if (address == null || !destinationAddresses.contains(address)) {
+                return false;
+            }
+            paysDestination = true;
+        }
+        return paysDestination;
+    }
+
+    private Address getAddress(final TransactionOutput output) {
+        try {
+            return output.getScriptPubKey().getToAddress(params);
+        } catch (ScriptException e) {
+            return null;
+        }
+    }
+
+    private void recordForward(final Transaction tx) {
+        final ForwardRecord forward = new ForwardRecord(tx, new DateTime(DateTimeZone.UTC));
+        forwardedSatoshis.addAndGet(forward.amount);
+        // Keep the ledger in commit order: nothing is written past an entry that failed
+        if (!unrecordedForwards.isEmpty() || !insertForward(forward)) {
+            unrecordedForwards.add(forward);
+        }
+    }
+
+    // True once every committed forward transaction is in the ledger
+    @VisibleForTesting
+    boolean writeUnrecordedForwards() {
+        ForwardRecord forward;
+        while ((forward = unrecordedForwards.peek()) != null) {
+            if (!insertForward(forward)) {
+                return false;
+            }
+            unrecordedForwards.poll();
+        }
+        return true;
+    }
+
+    private boolean insertForward(final ForwardRecord forward) {
+        try {
+            forwardDao.insertForward(forward.btcTxHash, forward.amounts, forward.fee, forward.nbInputs, forward.createdDate);
+            return true;
+        } catch (RuntimeException e) {
+            // The transaction is already broadcast, sweeps are halted until it is recorded
+            log.warn("Failed to record forward transaction " + forward.btcTxHash, e);
+            return false;
+        }
+    }
+
+    // The weighted destinations if any, the single bank address otherwise
+    private static List<String> getDestinations(final BitcoinConfig config) {
+        final List<String> destinations = new ArrayList<String>();
+        if (config.getForwardDestinations() != null) {
+            for (final String destination : config.getForwardDestinations()) {
+                if (!destination.trim().isEmpty()) {
+                    destinations.add(destination.trim());
+                }
+            }
+        }
+        if (destinations.isEmpty() && config.getForwardBankHash() != null) {
+            destinations.add(config.getForwardBankHash());
+        }
+        return destinations;
+    }
+
+    // Fails fast on a misconfiguration rather than on every sweep
+    @VisibleForTesting
+    static List<ForwardDestination> parseDestinations(final List<String> destinations, final NetworkParameters params) {
+        final List<ForwardDestination> forwardDestinations = new ArrayList<ForwardDestination>(destinations.size());
+        int sumWeights = 0;
+        for (final String destination : destinations) {
+            final ForwardDestination forwardDestination;
+            try {
+                forwardDestination = ForwardDestination.parse(destination, params);
+            } catch (AddressFormatException e) {
+                throw new IllegalArgumentException("Invalid forward destination address " + destination, e);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid forward destination weight or cap " + destination, e);
+            }
+            forwardDestinations.add(forwardDestination);
+            sumWeights += forwardDestination.getWeight();
+        }
+        if (!forwardDestinations.isEmpty() && sumWeights == 0) {
+            throw new IllegalArgumentException("At least one forward destination needs a positive weight: " + destinations);
+        }
+        return forwardDestinations;
+    }
+
+    private static Set<Address> getDestinationAddresses(final List<ForwardDestination> destinations) {
+        final Set<Address> destinationAddresses = new HashSet<Address>(destinations.size());
+        for (final ForwardDestination destination : destinations) {
+            destinationAddresses.add(destination.getAddress());
         }
+        return destinationAddresses;
+    }
 
-        // Notify forwarder we want to stop
-        synchronized (forwarder) {
-            isShuttingDown = true;
-            forwarder.notify();
+    private static SweepStrategy createSweepStrategy(final BitcoinConfig config) {
+        final BigInteger feePerKb = BigInteger.valueOf(config.getForwardFeePerKb());
+        if ("EMPTY_WALLET".equalsIgnoreCase(config.getForwardSweepStrategy())) {
+            return new EmptyWalletSweepStrategy(feePerKb);
         }
+        return new ChunkedSweepStrategy(config.getForwardMaxInputs(),
+                                        config.getForwardMaxTransactions(),
+                                        feePerKb,
+                                        BigInteger.valueOf(config.getForwardMinInputValue()));
+    }
+
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public int getNbUnrecordedForwards() {
+        return unrecordedForwards.size();
+    }
+
+    @Override
+    public String toString() {
+        return "BankForwarder{" +
+               "isRunning=" + isRunning +
+               ", sweeps=" + sweeps +
+               ", triggeredSweeps=" + triggeredSweeps +
+               ", forwardedSatoshis=" + forwardedSatoshis +
+               ", inFlightSkips=" + inFlightSkips +
+               ", failures=" + failures +
+               ", unrecordedForwards=" + unrecordedForwards.size() +
+               '}';
+    }
 
-        // Wait for forwarder to complete stop
-        do {
-            synchronized (forwarder) {
-                try {
-                    forwarder.wait(1000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+    private final class ForwardRecord {
+
+        private final String btcTxHash;
+        // Sent to each destination address, in satoshis
+        private final Map<String, Long> amounts;
+        private final long amount;
+        private final long fee;
+        private final int nbInputs;
+        private final DateTime createdDate;
+
+        private ForwardRecord(final Transaction tx, final DateTime createdDate) {
+            final Map<String, Long> amounts = new LinkedHashMap<String, Long>();
+            BigInteger totalOutput = BigInteger.ZERO;
+            long amount = 0;
+            for (final TransactionOutput output : tx.getOutputs()) {
+                totalOutput = totalOutput.add(output.getValue());
+                if (output.isMine(wallet)) {
+                    continue;
                 }
+                final Address address = getAddress(output);
+                final String targetAddress = address != null ? address.toString() : "unknown";
+                final Long previous = amounts.get(targetAddress);
+                amounts.put(targetAddress, (previous != null ? previous : 0L) + output.getValue().longValue());
+                amount += output.getValue().longValue();
             }
-        } while (isRunning);
+            this.btcTxHash = tx.getHashAsString();
+            this.amounts = amounts;
+            this.amount = amount;
+            this.fee = tx.getValueSentFromMe(wallet).subtract(totalOutput).longValue();
+            this.nbInputs = tx.getInputs().size();
+            this.createdDate = createdDate;
+        }
     }
 }
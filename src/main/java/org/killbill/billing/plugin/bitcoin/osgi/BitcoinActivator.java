@@ -26,10 +26,17 @@ import javax.servlet.http.HttpServlet;
 
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.BitcoinDBI;
 import org.killbill.billing.plugin.bitcoin.osgi.dao.ContractDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.ForwardDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.NotificationRetryDao;
 import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentWriteBuffer;
 import org.killbill.billing.plugin.bitcoin.osgi.dao.TransactionLogDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.TransactionLogWriter;
+import org.killbill.billing.plugin.bitcoin.osgi.http.PaymentRequestCache;
 import org.killbill.billing.plugin.bitcoin.osgi.http.PaymentRequestServlet;
+import org.killbill.billing.plugin.bitcoin.osgi.http.PollingWaiters;
 import org.killbill.billing.plugin.bitcoin.osgi.payment.BitcoinPaymentPluginApi;
 import org.killbill.killbill.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
@@ -40,9 +47,12 @@ public class BitcoinActivator extends KillbillActivatorBase {
 
     public static final String PLUGIN_NAME = "killbill-bitcoin";
 
-    private OSGIKillbillEventHandler eventListener;
+    private KillbillListener eventListener;
     private TransactionManager transactionManager;
-    private Thread asyncInit;
+    private PendingPaymentWriteBuffer paymentWriteBuffer;
+    private TransactionLogWriter transactionLogWriter;
+    private PollingWaiters pollingWaiters;
+    private NotificationRetryQueue retryQueue;
     private BitcoinManager btcListener;
 
     @Override
@@ -51,11 +61,23 @@ public class BitcoinActivator extends KillbillActivatorBase {
 
         final BitcoinConfig config = readBitcoinConfig();
 
-        final ContractDao contractDao = new ContractDao(dataSource.getDataSource());
-        final PendingPaymentDao paymentDao = new PendingPaymentDao(dataSource.getDataSource());
-        final TransactionLogDao transactionLogDao = new TransactionLogDao(dataSource.getDataSource());
-
-        this.transactionManager = new TransactionManager(logService, killbillAPI, paymentDao, config);
+        // Single DBI shared by all DAOs
+        final BitcoinDBI dbi = new BitcoinDBI(dataSource.getDataSource());
+        final ContractDao contractDao = new ContractDao(dbi);
+        final PendingPaymentDao paymentDao = new PendingPaymentDao(dbi);
+        final TransactionLogDao transactionLogDao = new TransactionLogDao(dbi);
+        final ForwardDao forwardDao = new ForwardDao(dbi);
+        this.transactionLogWriter = new TransactionLogWriter(transactionLogDao,
+                                                             TransactionLogWriter.Mode.valueOf(config.getTransactionLogMode().toUpperCase()),
+                                                             config.getTransactionLogBufferSize(),
+                                                             config.getTransactionLogFlushInterval().getMillis());
+        transactionLogWriter.start();
+        paymentDao.loadIndex();
+
+        this.paymentWriteBuffer = new PendingPaymentWriteBuffer(paymentDao, config.getPendingPaymentBatchSize(), config.getPendingPaymentBatchInterval().getMillis());
+        this.retryQueue = new NotificationRetryQueue(new NotificationRetryDao(dbi), paymentDao, config);
+        this.transactionManager = new TransactionManager(logService, killbillAPI, paymentDao, paymentWriteBuffer, retryQueue, config);
+        retryQueue.start(transactionManager);
 
         // Register the handler to receive KB events
         this.eventListener = new KillbillListener(logService, killbillAPI, transactionManager, config);
@@ -64,12 +86,18 @@ public class BitcoinActivator extends KillbillActivatorBase {
         // Register the payment plugin API
         registerPaymentPluginApi(context, new BitcoinPaymentPluginApi(killbillAPI));
 
-        // Starts thread that will initialize btc library-- fetch latest blocks
-        this.btcListener = new BitcoinManager(transactionManager, config);
-        this.asyncInit = new Thread(new RunnableInit());
-        asyncInit.start();
-
-        final PaymentRequestServlet paymentRequestServlet = new PaymentRequestServlet(killbillAPI, contractDao, paymentDao, transactionLogDao, btcListener);
+        // Initializes the btc library in the background -- fetch latest blocks; the servlet answers 503 until it is ready
+        this.btcListener = new BitcoinManager(transactionManager, paymentDao, forwardDao, config);
+        btcListener.startAsync();
+
+        final PaymentRequestCache paymentRequestCache = new PaymentRequestCache(config.getPaymentRequestCacheSize(), config.getPaymentRequestCacheTtl().getMillis());
+        this.pollingWaiters = new PollingWaiters(config.getMaxParkedPolls());
+        // Order matters: parked polls must see the cache already invalidated when they are woken up
+        paymentDao.addListener(paymentRequestCache);
+        paymentDao.addListener(pollingWaiters);
+        final PaymentRequestServlet paymentRequestServlet = new PaymentRequestServlet(killbillAPI, contractDao, paymentDao, transactionLogWriter, btcListener, dbi.getTimingCollector(),
+                                                                                      paymentRequestCache, pollingWaiters, config.getMaxPollWait().getMillis(),
+                                                                                      eventListener.getEventExecutor(), retryQueue, forwardDao);
         registerServlet(context, paymentRequestServlet);
     }
 
@@ -79,18 +107,15 @@ public class BitcoinActivator extends KillbillActivatorBase {
         return factory.build(BitcoinConfig.class);
     }
 
-    private class RunnableInit implements Runnable {
-
-        @Override
-        public void run() {
-            btcListener.start();
-        }
-    }
-
     @Override
     public void stop(final BundleContext context) throws Exception {
         super.stop(context);
+        pollingWaiters.stop();
+        eventListener.stop();
         btcListener.stop();
+        retryQueue.stop();
+        paymentWriteBuffer.stop();
+        transactionLogWriter.stop();
     }
 
     @Override
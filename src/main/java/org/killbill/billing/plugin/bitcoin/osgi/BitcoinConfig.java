@@ -66,5 +66,194 @@ public interface BitcoinConfig {
     @Config("org.killbill.billing.plugin.bitcoin.forward.interval")
     @Default("1h")
     public TimeSpan getForwardBankInterval();
-}
 
+    @Description("Comma separated list of address[:weight[:cap in satoshis]] the wallet funds are split between, in a single transaction per sweep (overrides the bank address)")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.destinations")
+    @DefaultNull
+    public List<String> getForwardDestinations();
+
+    @Description("Delay between the wallet balance reaching the minimum forward balance and the sweep to the bank, so that close payments are forwarded together")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.debounce")
+    @Default("10s")
+    public TimeSpan getForwardDebounce();
+
+    @Description("How wallet funds are forwarded to the bank: CHUNKED (bounded transactions, dust skipped) or EMPTY_WALLET (single transaction)")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.strategy")
+    @Default("CHUNKED")
+    public String getForwardSweepStrategy();
+
+    @Description("Maximum number of inputs of a forward transaction")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.max.inputs")
+    @Default("200")
+    public int getForwardMaxInputs();
+
+    @Description("Maximum number of forward transactions sent per sweep, remaining outputs are forwarded by the next one")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.max.transactions")
+    @Default("10")
+    public int getForwardMaxTransactions();
+
+    @Description("Fee (in satoshis) per kB of forward transaction")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.fee.per.kb")
+    @Default("10000")
+    public Long getForwardFeePerKb();
+
+    @Description("Outputs worth less than this amount (in satoshis) are not forwarded to the bank")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.min.input.value")
+    @Default("5460")
+    public Long getForwardMinInputValue();
+
+    @Description("Number of confirmations the previous forward transactions need before funds are forwarded again")
+    @Config("org.killbill.billing.plugin.bitcoin.forward.min.confirmations")
+    @Default("1")
+    public int getForwardMinConfirmations();
+
+    @Description("Number of threads notifying Kill Bill of confirmed bitcoin transactions")
+    @Config("org.killbill.billing.plugin.bitcoin.confirmation.threads")
+    @Default("2")
+    public int getConfirmationThreads();
+
+    @Description("Maximum number of confirmed transactions waiting to be notified to Kill Bill")
+    @Config("org.killbill.billing.plugin.bitcoin.confirmation.queue.size")
+    @Default("10000")
+    public int getConfirmationQueueSize();
+
+    @Description("Maximum number of pending payments buffered before they are inserted as one batch")
+    @Config("org.killbill.billing.plugin.bitcoin.pending.batch.size")
+    @Default("100")
+    public int getPendingPaymentBatchSize();
+
+    @Description("Maximum time a pending payment stays buffered before the batch is inserted")
+    @Config("org.killbill.billing.plugin.bitcoin.pending.batch.interval")
+    @Default("200ms")
+    public TimeSpan getPendingPaymentBatchInterval();
+
+    @Description("How audit logs are written: ASYNC (background, as soon as possible), INTERVAL (background, once per flush interval) or SYNC (in the request)")
+    @Config("org.killbill.billing.plugin.bitcoin.transaction.log.mode")
+    @Default("ASYNC")
+    public String getTransactionLogMode();
+
+    @Description("Maximum number of audit logs buffered before requests write their own log synchronously")
+    @Config("org.killbill.billing.plugin.bitcoin.transaction.log.buffer.size")
+    @Default("10000")
+    public int getTransactionLogBufferSize();
+
+    @Description("Flush interval for audit logs in INTERVAL mode")
+    @Config("org.killbill.billing.plugin.bitcoin.transaction.log.flush.interval")
+    @Default("1s")
+    public TimeSpan getTransactionLogFlushInterval();
+
+    @Description("Refill the pool of pre-generated receive keys when it holds fewer keys than this")
+    @Config("org.killbill.billing.plugin.bitcoin.key.pool.low")
+    @Default("20")
+    public int getKeyPoolLowWatermark();
+
+    @Description("Number of pre-generated receive keys the pool is refilled to")
+    @Config("org.killbill.billing.plugin.bitcoin.key.pool.high")
+    @Default("100")
+    public int getKeyPoolHighWatermark();
+
+    @Description("Maximum number of contracts whose last PaymentRequest is cached for polling wallets")
+    @Config("org.killbill.billing.plugin.bitcoin.payment.request.cache.size")
+    @Default("10000")
+    public int getPaymentRequestCacheSize();
+
+    @Description("How long a cached PaymentRequest is served before being rebuilt (it expires one day after being built)")
+    @Config("org.killbill.billing.plugin.bitcoin.payment.request.cache.ttl")
+    @Default("10m")
+    public TimeSpan getPaymentRequestCacheTtl();
+
+    @Description("Upper bound on the wait parameter of long polls, for which the response is held until an invoice is due")
+    @Config("org.killbill.billing.plugin.bitcoin.polling.max.wait")
+    @Default("60s")
+    public TimeSpan getMaxPollWait();
+
+    @Description("Maximum number of long polls held at the same time, further polls are answered immediately")
+    @Config("org.killbill.billing.plugin.bitcoin.polling.max.parked")
+    @Default("10000")
+    public int getMaxParkedPolls();
+
+    @Description("Maximum number of payment methods whose plugin name is cached to filter out non bitcoin payments")
+    @Config("org.killbill.billing.plugin.bitcoin.payment.method.cache.size")
+    @Default("10000")
+    public int getPaymentMethodCacheSize();
+
+    @Description("How long the plugin name of a payment method is cached")
+    @Config("org.killbill.billing.plugin.bitcoin.payment.method.cache.ttl")
+    @Default("1h")
+    public TimeSpan getPaymentMethodCacheTtl();
+
+    @Description("Number of threads processing Kill Bill events, events of a given account are always processed by the same thread")
+    @Config("org.killbill.billing.plugin.bitcoin.event.threads")
+    @Default("4")
+    public int getEventThreads();
+
+    @Description("Maximum number of Kill Bill events queued per thread, further events are rejected and redelivered by the bus")
+    @Config("org.killbill.billing.plugin.bitcoin.event.queue.size")
+    @Default("1000")
+    public int getEventQueueSize();
+
+    @Description("Delay before the first retry of a failed Kill Bill notification, doubled after each failed attempt")
+    @Config("org.killbill.billing.plugin.bitcoin.notification.retry.initial.backoff")
+    @Default("30s")
+    public TimeSpan getNotificationRetryInitialBackoff();
+
+    @Description("Maximum delay between two retries of a failed Kill Bill notification")
+    @Config("org.killbill.billing.plugin.bitcoin.notification.retry.max.backoff")
+    @Default("1h")
+    public TimeSpan getNotificationRetryMaxBackoff();
+
+    @Description("How often failed Kill Bill notifications due for a retry are looked up")
+    @Config("org.killbill.billing.plugin.bitcoin.notification.retry.interval")
+    @Default("10s")
+    public TimeSpan getNotificationRetryInterval();
+
+    @Description("Maximum number of failed Kill Bill notifications retried per batch")
+    @Config("org.killbill.billing.plugin.bitcoin.notification.retry.batch.size")
+    @Default("100")
+    public int getNotificationRetryBatchSize();
+
+    @Description("Number of attempts after which a failed Kill Bill notification is moved to the dead letter state and no longer retried")
+    @Config("org.killbill.billing.plugin.bitcoin.notification.retry.max.attempts")
+    @Default("25")
+    public int getNotificationRetryMaxAttempts();
+
+    @Description("How often pending payments are reconciled against the wallet transaction depths (also done at startup), 0 to disable")
+    @Config("org.killbill.billing.plugin.bitcoin.reconciliation.interval")
+    @Default("10m")
+    public TimeSpan getReconciliationInterval();
+
+    @Description("Number of pending payments read per page during reconciliation")
+    @Config("org.killbill.billing.plugin.bitcoin.reconciliation.page.size")
+    @Default("500")
+    public int getReconciliationPageSize();
+
+    @Description("Checkpoints file used to sync a new chain from the last checkpoint instead of genesis (defaults to the checkpoints bundled for the network, if any)")
+    @Config("org.killbill.billing.plugin.bitcoin.checkpoints.file")
+    @DefaultNull
+    public String getCheckpointsFile();
+
+    @Description("Maximum number of peers the SPV peer group connects to")
+    @Config("org.killbill.billing.plugin.bitcoin.peer.max.connections")
+    @Default("4")
+    public int getMaxPeerConnections();
+
+    @Description("Number of peers a transaction must be announced to before being considered broadcast, 0 for the bitcoinj default")
+    @Config("org.killbill.billing.plugin.bitcoin.peer.min.broadcast.connections")
+    @Default("0")
+    public int getMinBroadcastConnections();
+
+    @Description("Target false positive rate of the Bloom filter sent to peers: higher means more privacy but more irrelevant transactions downloaded (the filter is resent once the observed rate exceeds twice this one)")
+    @Config("org.killbill.billing.plugin.bitcoin.bloom.fp.rate")
+    @Default("0.0005")
+    public double getBloomFilterFalsePositiveRate();
+
+    @Description("How new receive keys are created: HD (BIP32 derivation from a seed stored next to the wallet) or RANDOM")
+    @Config("org.killbill.billing.plugin.bitcoin.key.derivation")
+    @Default("HD")
+    public String getKeyDerivation();
+
+    @Description("BIP32 account (hardened) under which receive keys are derived, e.g. one per plugin instance sharing a seed")
+    @Config("org.killbill.billing.plugin.bitcoin.key.derivation.account")
+    @Default("0")
+    public int getKeyDerivationAccount();
+}
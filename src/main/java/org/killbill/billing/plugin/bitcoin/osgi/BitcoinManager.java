@@ -18,17 +18,26 @@
 package org.killbill.billing.plugin.bitcoin.osgi;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.killbill.billing.plugin.bitcoin.osgi.dao.ForwardDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.core.Wallet;
@@ -36,101 +45,246 @@ import com.google.bitcoin.kits.WalletAppKit;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.RegTestParams;
 import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.protobuf.ByteString;
 
 public class BitcoinManager {
 
+    // NEW -> STARTING -> SYNCING -> READY -> STOPPING -> STOPPED, or FAILED if the startup fails
+    public enum State {
+        NEW,
+        STARTING,
+        SYNCING,
+        READY,
+        FAILED,
+        STOPPING,
+        STOPPED
+    }
+
     private static final Logger log = LoggerFactory.getLogger(BitcoinManager.class);
 
     private final WalletAppKit kit;
     private final TransactionManager transactionManager;
+    private final ConfirmationProcessor confirmationProcessor;
+    private final PendingPaymentDao paymentDao;
+    private final ForwardDao forwardDao;
     private final BitcoinConfig config;
 
     private BankForwarder forwarder;
-
-    private volatile boolean isInitialized;
-
-    public BitcoinManager(final TransactionManager transactionManager, final BitcoinConfig config) {
+    private KeyGenerator keyGenerator;
+    private KeyPool keyPool;
+    private volatile OwnedScripts ownedScripts;
+    private PendingPaymentReconciler reconciler;
+    private volatile PeerGroupMonitor peerGroupMonitor;
+
+    private final SyncProgress syncProgress;
+    private final AtomicReference<State> state;
+    // Components are created and stopped under this lock, so stop() never races a half started wallet
+    private final Object lifecycleLock;
+    private final Thread startupThread;
+
+    public BitcoinManager(final TransactionManager transactionManager, final PendingPaymentDao paymentDao, final ForwardDao forwardDao, final BitcoinConfig config) {
         this.transactionManager = transactionManager;
+        this.paymentDao = paymentDao;
+        this.forwardDao = forwardDao;
         this.config = config;
+        this.confirmationProcessor = new ConfirmationProcessor(transactionManager, config);
+        this.state = new AtomicReference<State>(State.NEW);
+        this.lifecycleLock = new Object();
+        this.syncProgress = new SyncProgress() {
+            @Override
+            protected void startDownload(final int blocks) {
+                super.startDownload(blocks);
+                state.compareAndSet(State.STARTING, State.SYNCING);
+            }
+        };
         this.kit = initializeKit();
-        this.isInitialized = false;
+        this.startupThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start();
+                } catch (RuntimeException e) {
+                    log.error("Failed to start the bitcoin wallet", e);
+                    state.compareAndSet(State.STARTING, State.FAILED);
+                    state.compareAndSet(State.SYNCING, State.FAILED);
+                }
+            }
+        }, "bitcoin-wallet-startup");
+        this.startupThread.setDaemon(true);
+    }
+
+    // Returns right away, wallet dependent calls must wait for isReady()
+    public void startAsync() {
+        startupThread.start();
     }
 
     public void start() {
+        if (!state.compareAndSet(State.NEW, State.STARTING)) {
+            throw new IllegalStateException("Bitcoin manager cannot be started in state " + state.get());
+        }
+
         // Download the block chain and wait until it's done.
         kit.startAndWait();
 
-        addKeyIfMissing();
+        synchronized (lifecycleLock) {
+            if (state.get() == State.STOPPING || state.get() == State.STOPPED) {
+                log.info("Bitcoin wallet stopped while syncing");
+                return;
+            }
+            startComponents();
+            state.set(State.READY);
+        }
+        log.info("Bitcoin wallet is ready");
+    }
 
-        startBankForwarder();
+    private void startComponents() {
+        // Before any key gets added by the pool
+        this.ownedScripts = new OwnedScripts(kit.wallet());
+        this.keyGenerator = createKeyGenerator();
+        this.keyPool = new KeyPool(kit.wallet(), keyGenerator, getNetworkParameters(), new File(config.getInstallDirectory(), getFilePrefix() + ".keypool"), config);
+        keyPool.start();
+
+        addKeyIfMissing();
 
         log.info(walletAsString());
 
-        kit.wallet().addEventListener(new AbstractWalletEventListener() {
-            @Override
-            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        // Newly confirmed transactions are computed once per block and notified as a batch
+        kit.chain().addListener(new BlockConfirmationHandler(kit.wallet(), confirmationProcessor, config));
+        // Transactions that got deep while we were not listening
+        this.reconciler = new PendingPaymentReconciler(paymentDao, kit.wallet(), confirmationProcessor, config);
+        reconciler.start();
 
-                final String txHashStr = tx.getHash().toString();
+        // Last, payments are still confirmed if forwarding cannot be started
+        startBankForwarder();
+    }
 
-                log.info("Bitcoin listener received new transaction " + txHashStr + ", confidence = " + tx.getConfidence());
+    public State getState() {
+        return state.get();
+    }
 
-                if (tx.getConfidence().getDepthInBlocks() < config.getConfidenceBlockDepth()) {
-                    return;
-                }
+    public boolean isReady() {
+        return state.get() == State.READY;
+    }
 
-                final boolean success = transactionManager.notifyPaymentSystemIfExists(txHashStr);
-                if (success) {
-                    log.info("Bitcoin notifing transaction manager for " + tx.getHash() + ", confidence = " + tx.getConfidence());
-                }
-            }
-        });
-        this.isInitialized = true;
+    public SyncProgress getSyncProgress() {
+        return syncProgress;
+    }
+
+    private KeyGenerator createKeyGenerator() {
+        if ("RANDOM".equalsIgnoreCase(config.getKeyDerivation())) {
+            return new RandomKeyGenerator();
+        }
+        return new DeterministicKeyGenerator(new File(config.getInstallDirectory(), getFilePrefix() + ".seed"),
+                                             new File(config.getInstallDirectory(), getFilePrefix() + ".seedindex"),
+                                             config.getKeyDerivationAccount(),
+                                             // A key pool refill is the largest batch that can be lost
+                                             Math.max(DeterministicKeyGenerator.DEFAULT_GAP_LIMIT, config.getKeyPoolHighWatermark()),
+                                             kit.wallet());
     }
 
     private void startBankForwarder() {
-        this.forwarder = new BankForwarder(config, kit.wallet(), getNetworkParameters());
-        forwarder.start();
+        final BankForwarder bankForwarder;
+        try {
+            bankForwarder = new BankForwarder(config, kit.wallet(), getNetworkParameters(), forwardDao);
+            bankForwarder.start();
+        } catch (RuntimeException e) {
+            // Typically an invalid forward destination: funds stay in the wallet until the configuration is fixed
+            log.error("Failed to start the bank forwarder, received funds will not be forwarded", e);
+            return;
+        }
+        this.forwarder = bankForwarder;
     }
 
     public void stop() {
-        forwarder.stop();
+        final State previousState;
+        synchronized (lifecycleLock) {
+            previousState = state.getAndSet(State.STOPPING);
+            if (forwarder != null) {
+                forwarder.stop();
+            }
+            if (reconciler != null) {
+                reconciler.stop();
+            }
+            confirmationProcessor.stop();
+            if (keyPool != null) {
+                keyPool.stop();
+            }
+            if (ownedScripts != null) {
+                ownedScripts.stop();
+            }
+        }
+        if (previousState != State.NEW) {
+            try {
+                kit.stopAndWait();
+            } catch (RuntimeException e) {
+                log.warn("Failed to stop the wallet kit", e);
+            }
+        }
+        state.set(State.STOPPED);
     }
 
     public void commitTransaction(Transaction tx) {
         kit.wallet().maybeCommitTx(tx);
     }
 
+    // Keys come from the pool: they are already in the wallet
     public ECKey addKey() {
-        final ECKey newKey = new ECKey();
-        kit.wallet().addKey(newKey);
-        log.info("GENERATED NEW KEY FOR BITCOIN WALLET : " + newKey.toAddress(getNetworkParameters()));
+        final ECKey newKey = keyPool.take();
+        log.info("ISSUED NEW KEY FOR BITCOIN WALLET : " + newKey.toAddress(getNetworkParameters()));
         return newKey;
     }
 
+    public String issueReceiveAddress() {
+        return addKey().toAddress(getNetworkParameters()).toString();
+    }
+
+    public Script createOutputScript(final String address) {
+        try {
+            return ScriptBuilder.createOutputScript(new Address(getNetworkParameters(), address));
+        } catch (AddressFormatException e) {
+            throw new IllegalStateException("Invalid receive address " + address, e);
+        }
+    }
+
     public void addKeyIfMissing() {
         if (config.shouldGenerateKey()) {
-            addKey();
+            final ECKey newKey = keyGenerator.generateKeys(1).get(0);
+            kit.wallet().addKey(newKey);
+            log.info("GENERATED NEW KEY FOR BITCOIN WALLET : " + newKey.toAddress(getNetworkParameters()));
         }
     }
 
+    public PendingPaymentReconciler getReconciler() {
+        return reconciler;
+    }
+
+    public KeyPool getKeyPool() {
+        return keyPool;
+    }
+
+    public BankForwarder getForwarder() {
+        return forwarder;
+    }
+
+    public OwnedScripts getOwnedScripts() {
+        return ownedScripts;
+    }
+
     public String walletAsString() {
         return kit.wallet().toString(false, true, true, null);
     }
 
     public Collection<TransactionOutput> isMine(final ByteString transactionBytes) {
+        if (ownedScripts == null) {
+            throw new IllegalStateException("Bitcoin wallet is not started");
+        }
 
-        Transaction transaction = new Transaction(getNetworkParameters(), transactionBytes.toByteArray());
-        return Collections2.<TransactionOutput>filter(transaction.getOutputs(), new Predicate<TransactionOutput>() {
-            @Override
-            public boolean apply(TransactionOutput output) {
-                return output.isMine(kit.wallet());
-            }
-        });
+        final Transaction transaction = new Transaction(getNetworkParameters(), transactionBytes.toByteArray());
+        return ownedScripts.filterMine(transaction.getOutputs());
     }
 
     public Transaction broadcastTransaction(final ByteString transactionBytes) throws ExecutionException, InterruptedException {
@@ -147,7 +301,16 @@ public class BitcoinManager {
         final String filePrefix = getFilePrefix();
 
         // Start up a basic app using a class that automates some boilerplate.
-        final WalletAppKit tmpKit = new WalletAppKit(params, new File(config.getInstallDirectory()), filePrefix);
+        // The fast catch-up time (headers only before it) and the checkpoint used for a new chain file both come from the
+        // earliest key creation time in the wallet: the peer group recomputes it whenever keys are added.
+        final WalletAppKit tmpKit = new WalletAppKit(params, new File(config.getInstallDirectory()), filePrefix) {
+            @Override
+            protected void onSetupCompleted() {
+                configurePeerGroup(peerGroup(), chain(), wallet());
+                // The kit ignores setDownloadListener() on a blocking startup: listen on the peer group instead
+                peerGroup().addEventListener(syncProgress);
+            }
+        };
         tmpKit.setAutoSave(true);
         tmpKit.setUserAgent("killbill", "1.0");
 
@@ -155,10 +318,54 @@ public class BitcoinManager {
             // Regression test mode is designed for testing and development only, so there's no public network for it.
             // If you pick this mode, you're expected to be running a local "bitcoind -regtest" instance.
             tmpKit.connectToLocalHost();
+        } else {
+            final InputStream checkpoints = openCheckpoints();
+            if (checkpoints != null) {
+                // A new chain file starts from the last checkpoint before the earliest key instead of genesis
+                tmpKit.setCheckpoints(checkpoints);
+            }
         }
         return tmpKit;
     }
 
+    // Trade privacy (higher false positive rate, more peers) against bandwidth and CPU
+    private void configurePeerGroup(final PeerGroup peerGroup, final AbstractBlockChain chain, final Wallet wallet) {
+        peerGroup.setMaxConnections(config.getMaxPeerConnections());
+        if (config.getMinBroadcastConnections() > 0) {
+            peerGroup.setMinBroadcastConnections(config.getMinBroadcastConnections());
+        }
+        peerGroup.setBloomFilterFalsePositiveRate(config.getBloomFilterFalsePositiveRate());
+        this.peerGroupMonitor = new PeerGroupMonitor(peerGroup, chain, wallet);
+        peerGroup.addEventListener(peerGroupMonitor);
+    }
+
+    public PeerGroupMonitor getPeerGroupMonitor() {
+        return peerGroupMonitor;
+    }
+
+    // Configured file first, then the file bundled with the plugin for that network
+    private InputStream openCheckpoints() {
+        final String checkpointsFile = config.getCheckpointsFile();
+        if (checkpointsFile != null) {
+            try {
+                log.info("Using checkpoints from " + checkpointsFile);
+                return new FileInputStream(checkpointsFile);
+            } catch (FileNotFoundException e) {
+                log.warn("Checkpoints file " + checkpointsFile + " not found, the chain will be synced without checkpoints");
+                return null;
+            }
+        }
+
+        final String resource = "/org/killbill/billing/plugin/bitcoin/osgi/" + getFilePrefix() + ".checkpoints";
+        final InputStream bundled = BitcoinManager.class.getResourceAsStream(resource);
+        if (bundled == null) {
+            log.info("No checkpoints configured, the chain will be synced from genesis");
+        } else {
+            log.info("Using bundled checkpoints " + resource);
+        }
+        return bundled;
+    }
+
     public List<String> getKeys() {
         final List<String> keys = new LinkedList<String>();
         for (final ECKey ecKey : kit.wallet().getKeys()) {
@@ -168,6 +375,10 @@ public class BitcoinManager {
         return keys;
     }
 
+    public ConfirmationProcessor getConfirmationProcessor() {
+        return confirmationProcessor;
+    }
+
     @VisibleForTesting
     WalletAppKit getKit() {
         return kit;
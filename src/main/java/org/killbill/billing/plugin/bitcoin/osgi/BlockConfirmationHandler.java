@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Computes, for each new best block, the wallet transactions that just reached the configured depth and
+ * hands them to the confirmation stage as a single batch.
+ * <p/>
+ * A transaction mined at height h reaches depth d at height h + d - 1, so the transactions crossing the threshold between
+ * two best blocks are the ones that appeared in the matching height range; this also covers blocks connected while
+ * the listener was lagging behind the chain.
+ * <p/>
+ * A confirmed hash stays in the unreported set until the confirmation stage has processed it: a batch that was rejected
+ * (queue full) or failed is submitted again with the next block, while hashes still in flight are deduplicated by the
+ * {@link ConfirmationProcessor}.
+ */
+public class BlockConfirmationHandler extends AbstractBlockChainListener {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockConfirmationHandler.class);
+
+    private final Wallet wallet;
+    private final ConfirmationProcessor confirmationProcessor;
+    private final int confidenceBlockDepth;
+    private final Set<String> unreportedTxHashes;
+    private final ConfirmationProcessor.Callback onProcessed;
+
+    private int lastBestHeight;
+
+    public BlockConfirmationHandler(final Wallet wallet, final ConfirmationProcessor confirmationProcessor, final BitcoinConfig config) {
+        this.wallet = wallet;
+        this.confirmationProcessor = confirmationProcessor;
+        this.confidenceBlockDepth = config.getConfidenceBlockDepth();
+        this.unreportedTxHashes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.onProcessed = new ConfirmationProcessor.Callback() {
+            @Override
+            public void onProcessed(final List<String> txHashes) {
+                unreportedTxHashes.removeAll(txHashes);
+            }
+        };
+        this.lastBestHeight = -1;
+    }
+
+    @Override
+    public synchronized void notifyNewBestBlock(final StoredBlock block) {
+        final int bestHeight = block.getHeight();
+        // On the first block (or after a reorganization) only consider the transactions crossing the threshold on that block
+        final int fromHeight = (lastBestHeight < 0 || lastBestHeight >= bestHeight) ? bestHeight : lastBestHeight + 1;
+        lastBestHeight = bestHeight;
+
+        final List<String> confirmedTxHashes = findNewlyConfirmed(fromHeight - confidenceBlockDepth + 1, bestHeight - confidenceBlockDepth + 1);
+        if (!confirmedTxHashes.isEmpty()) {
+            log.info("Block " + block.getHeader().getHashAsString() + " at height " + bestHeight + " confirmed " + confirmedTxHashes.size() + " wallet transaction(s)");
+            unreportedTxHashes.addAll(confirmedTxHashes);
+        }
+        if (unreportedTxHashes.isEmpty()) {
+            return;
+        }
+
+        confirmationProcessor.submit(new LinkedList<String>(unreportedTxHashes), onProcessed);
+    }
+
+    public int getNbUnreported() {
+        return unreportedTxHashes.size();
+    }
+
+    private List<String> findNewlyConfirmed(final int fromAppearedHeight, final int toAppearedHeight) {
+        final List<String> result = new LinkedList<String>();
+        for (final Transaction tx : wallet.getTransactions(false)) {
+            final TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() != ConfidenceType.BUILDING) {
+                continue;
+            }
+            final int appearedAtHeight = confidence.getAppearedAtChainHeight();
+            if (appearedAtHeight >= fromAppearedHeight && appearedAtHeight <= toAppearedHeight) {
+                result.add(tx.getHashAsString());
+            }
+        }
+        return result;
+    }
+}
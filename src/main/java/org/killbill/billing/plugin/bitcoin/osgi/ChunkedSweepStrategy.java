@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.collect.Lists;
+
+/**
+ * Spends the available outputs in transactions of at most maxInputs inputs, largest outputs first, so that the size
+ * and fee of each transaction stay bounded however many payments were received.
+ * <p/>
+ * Outputs worth less than what it costs to spend them (or than the configured minimum) are left in the wallet.
+ * At most maxTransactions are sent per sweep: the remaining outputs are picked up by the next one.
+ */
+public class ChunkedSweepStrategy implements SweepStrategy {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedSweepStrategy.class);
+
+    private final int maxInputs;
+    private final int maxTransactions;
+    private final BigInteger feePerKb;
+    private final BigInteger minInputValue;
+
+    public ChunkedSweepStrategy(final int maxInputs, final int maxTransactions, final BigInteger feePerKb, final BigInteger minInputValue) {
+        this.maxInputs = maxInputs;
+        this.maxTransactions = maxTransactions;
+        this.feePerKb = feePerKb;
+        // An input must at least pay for its own space in the transaction
+        this.minInputValue = minInputValue.max(feePerKb.multiply(BigInteger.valueOf(SweepRequests.INPUT_SIZE)).divide(BigInteger.valueOf(1000)));
+    }
+
+    @Override
+    public List<Wallet.SendResult> sweep(final Wallet wallet, final List<ForwardDestination> destinations, final Listener listener) throws InsufficientMoneyException {
+        final List<TransactionOutput> outputs = SweepRequests.getSpendableOutputs(wallet, minInputValue);
+        if (outputs.isEmpty()) {
+            return Collections.<Wallet.SendResult>emptyList();
+        }
+
+        final List<List<TransactionOutput>> chunks = Lists.partition(outputs, maxInputs);
+        final List<Wallet.SendResult> results = new ArrayList<Wallet.SendResult>();
+        for (final List<TransactionOutput> chunk : chunks.subList(0, Math.min(chunks.size(), maxTransactions))) {
+            final Wallet.SendRequest req = SweepRequests.create(wallet, chunk, destinations, feePerKb);
+            if (req == null) {
+                log.info("Skipping sweep of " + chunk.size() + " outputs not worth the fee");
+                continue;
+            }
+            final Wallet.SendResult result = wallet.sendCoins(req);
+            results.add(result);
+            listener.onSent(result);
+        }
+        if (chunks.size() > maxTransactions) {
+            log.info("Sweep limited to " + maxTransactions + " transactions, " + (outputs.size() - maxTransactions * maxInputs) + " outputs left for the next one");
+        }
+        return results;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Notifies Kill Bill of confirmed bitcoin transactions off the bitcoinj event thread.
+ * <p/>
+ * Each submitted batch is one unit of work. A transaction already queued or being processed is not queued again, and
+ * when the queue is full the batch is dropped and counted as rejected (the {@link PendingPaymentReconciler} picks it up
+ * on its next run).
+ * <p/>
+ * Callers that need to know when a batch is done pass a {@link Callback}: it is invoked once the batch went through the
+ * transaction manager without error, and never for rejected or failed batches, which stay the caller's to re-submit.
+ */
+public class ConfirmationProcessor {
+
+    public interface Callback {
+
+        public void onProcessed(List<String> txHashes);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ConfirmationProcessor.class);
+
+    private static final long SHUTDOWN_TIMEOUT_SEC = 30;
+
+    private final TransactionManager transactionManager;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> inFlight;
+
+    private final AtomicLong submitted;
+    private final AtomicLong deduplicated;
+    private final AtomicLong rejected;
+    private final AtomicLong notified;
+    private final AtomicLong failed;
+
+    public ConfirmationProcessor(final TransactionManager transactionManager, final BitcoinConfig config) {
+        this.transactionManager = transactionManager;
+        this.executor = new ThreadPoolExecutor(config.getConfirmationThreads(),
+                                               config.getConfirmationThreads(),
+                                               0L,
+                                               TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<Runnable>(config.getConfirmationQueueSize()),
+                                               new ThreadFactoryBuilder().setNameFormat("bitcoin-confirmation-%d").setDaemon(true).build(),
+                                               new ThreadPoolExecutor.AbortPolicy());
+        this.inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.submitted = new AtomicLong();
+        this.deduplicated = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.notified = new AtomicLong();
+        this.failed = new AtomicLong();
+    }
+
+    public boolean submit(final String txHash) {
+        return submit(ImmutableList.<String>of(txHash)) > 0;
+    }
+
+    public int submit(final Collection<String> txHashes) {
+        return submit(txHashes, null);
+    }
+
+    public int submit(final Collection<String> txHashes, final Callback callback) {
+        final List<String> batch = new ArrayList<String>(txHashes.size());
+        for (final String txHash : txHashes) {
+            if (inFlight.add(txHash)) {
+                batch.add(txHash);
+            } else {
+                deduplicated.incrementAndGet();
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final int nbNotified = transactionManager.notifyPaymentSystemIfExists(batch);
+                        if (nbNotified > 0) {
+                            notified.addAndGet(nbNotified);
+                            log.info("Bitcoin notified transaction manager for " + nbNotified + " payment(s) out of " + batch.size() + " confirmed transaction(s)");
+                        }
+                        if (callback != null) {
+                            callback.onProcessed(batch);
+                        }
+                    } catch (RuntimeException e) {
+                        failed.addAndGet(batch.size());
+                        log.warn("Failed to process confirmation for transactions " + batch, e);
+                    } finally {
+                        inFlight.removeAll(batch);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.removeAll(batch);
+            rejected.addAndGet(batch.size());
+            log.warn("Confirmation queue full, dropping " + batch.size() + " transaction(s) until they are reported again");
+            return 0;
+        }
+        submitted.addAndGet(batch.size());
+        return batch.size();
+    }
+
+    public void stop() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for confirmation queue to drain, " + executor.getQueue().size() + " pending");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stopped confirmation processor: " + toString());
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getRemainingCapacity() {
+        return executor.getQueue().remainingCapacity();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getNotified() {
+        return notified.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConfirmationProcessor{" +
+               "queueDepth=" + getQueueDepth() +
+               ", remainingCapacity=" + getRemainingCapacity() +
+               ", submitted=" + submitted +
+               ", deduplicated=" + deduplicated +
+               ", rejected=" + rejected +
+               ", notified=" + notified +
+               ", failed=" + failed +
+               '}';
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.ChildNumber;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * BIP32 keys derived from a single seed along m/account'/0/i, so that the seed alone is enough to recover every
+ * receive key.
+ * <p/>
+ * The next index is saved before keys are handed out, so an index is never issued twice. If the index file is lost,
+ * it is recovered as one past the highest derived key found in the wallet, scanning until gapLimit consecutive keys
+ * are missing: keys saved in the index but never added to the wallet (e.g. a crash during a key pool refill) leave
+ * such gaps, so the gap limit must be at least the largest batch of keys generated at once.
+ * <p/>
+ * The seed is stored as plain hex, like the private keys in the (unencrypted) wallet file, and is only readable and
+ * writable by its owner: protect and back it up like the wallet itself.
+ */
+public class DeterministicKeyGenerator implements KeyGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(DeterministicKeyGenerator.class);
+
+    private static final int SEED_LENGTH = 32;
+    private static final int EXTERNAL_CHAIN = 0;
+
+    public static final int DEFAULT_GAP_LIMIT = 20;
+
+    private final File indexFile;
+    private final int gapLimit;
+    private final DeterministicKey externalChainKey;
+
+    private int nextIndex;
+
+    public DeterministicKeyGenerator(final File seedFile, final File indexFile, final int account, final int gapLimit, final Wallet wallet) {
+        this.indexFile = indexFile;
+        this.gapLimit = gapLimit;
+        final DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(loadOrCreateSeed(seedFile));
+        final DeterministicKey accountKey = HDKeyDerivation.deriveChildKey(masterKey, new ChildNumber(account, true));
+        this.externalChainKey = HDKeyDerivation.deriveChildKey(accountKey, new ChildNumber(EXTERNAL_CHAIN, false));
+        this.nextIndex = loadOrRecoverIndex(wallet);
+    }
+
+    @Override
+    public synchronized List<ECKey> generateKeys(final int nbKeys) {
+        final int fromIndex = nextIndex;
+        saveIndex(fromIndex + nbKeys);
+        nextIndex = fromIndex + nbKeys;
+
+        final long nowSecs = Utils.currentTimeMillis() / 1000;
+        final List<ECKey> keys = new ArrayList<ECKey>(nbKeys);
+        for (int i = fromIndex; i < fromIndex + nbKeys; i++) {
+            final ECKey key = deriveKey(i);
+            key.setCreationTimeSeconds(nowSecs);
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private ECKey deriveKey(final int index) {
+        return HDKeyDerivation.deriveChildKey(externalChainKey, new ChildNumber(index, false)).toECKey();
+    }
+
+    private byte[] loadOrCreateSeed(final File seedFile) {
+        try {
+            if (seedFile.exists()) {
+                // Seeds created by earlier versions got the default permissions
+                restrictToOwner(seedFile);
+                return Hex.decode(Files.toString(seedFile, Charsets.UTF_8).trim());
+            }
+
+            final byte[] seed = new byte[SEED_LENGTH];
+            new SecureRandom().nextBytes(seed);
+            writeOwnerOnly(seedFile, Utils.bytesToHexString(seed));
+            log.info("Created new key derivation seed " + seedFile + ", back it up: it is needed to recover the receive keys");
+            return seed;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load key derivation seed " + seedFile, e);
+        }
+    }
+
+    private int loadOrRecoverIndex(final Wallet wallet) {
+        if (indexFile.exists()) {
+            try {
+                return Integer.valueOf(Files.toString(indexFile, Charsets.UTF_8).trim());
+            } catch (IOException e) {
+                log.warn("Unable to read key derivation index " + indexFile + ", recovering it from the wallet", e);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid key derivation index " + indexFile + ", recovering it from the wallet", e);
+            }
+        }
+
+        int highestIndex = -1;
+        for (int index = 0; index - highestIndex <= gapLimit; index++) {
+            if (wallet.findKeyFromPubHash(deriveKey(index).getPubKeyHash()) != null) {
+                highestIndex = index;
+            }
+        }
+        final int nextIndex = highestIndex + 1;
+        log.info("Recovered key derivation index " + nextIndex + " from the wallet");
+        saveIndex(nextIndex);
+        return nextIndex;
+    }
+
+    private void saveIndex(final int index) {
+        try {
+            write(indexFile, String.valueOf(index));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to save key derivation index " + indexFile, e);
+        }
+    }
+
+    private void write(final File file, final String content) throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(content, tmpFile, Charsets.UTF_8);
+        Files.move(tmpFile, file);
+    }
+
+    // Permissions are restricted before the content is written, so the seed is never readable by others
+    private void writeOwnerOnly(final File file, final String content) throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        if (!tmpFile.delete() && tmpFile.exists()) {
+            throw new IOException("Unable to delete " + tmpFile);
+        }
+        Files.touch(tmpFile);
+        restrictToOwner(tmpFile);
+        Files.write(content, tmpFile, Charsets.UTF_8);
+        Files.move(tmpFile, file);
+    }
+
+    // 0600
+    @VisibleForTesting
+    static void restrictToOwner(final File file) throws IOException {
+        final boolean isRestricted = file.setReadable(false, false) &&
+                                     file.setReadable(true, true) &&
+                                     file.setWritable(false, false) &&
+                                     file.setWritable(true, true) &&
+                                     file.setExecutable(false, false);
+        if (!isRestricted) {
+            throw new IOException("Unable to restrict the permissions of " + file + " to its owner");
+        }
+    }
+}
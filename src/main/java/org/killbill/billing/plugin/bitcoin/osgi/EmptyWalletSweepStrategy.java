@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Spends all the available outputs in a single transaction, whatever their number and value.
+ */
+public class EmptyWalletSweepStrategy implements SweepStrategy {
+
+    private final BigInteger feePerKb;
+
+    public EmptyWalletSweepStrategy(final BigInteger feePerKb) {
+        this.feePerKb = feePerKb;
+    }
+
+    @Override
+    public List<Wallet.SendResult> sweep(final Wallet wallet, final List<ForwardDestination> destinations, final Listener listener) throws InsufficientMoneyException {
+        final Wallet.SendRequest req;
+        if (destinations.size() == 1) {
+            req = Wallet.SendRequest.emptyWallet(destinations.get(0).getAddress());
+            req.feePerKb = feePerKb;
+        } else {
+            req = SweepRequests.create(wallet, SweepRequests.getSpendableOutputs(wallet, BigInteger.ZERO), destinations, feePerKb);
+            if (req == null) {
+                return Collections.<Wallet.SendResult>emptyList();
+            }
+        }
+        final Wallet.SendResult result = wallet.sendCoins(req);
+        listener.onSent(result);
+        return ImmutableList.<Wallet.SendResult>of(result);
+    }
+}
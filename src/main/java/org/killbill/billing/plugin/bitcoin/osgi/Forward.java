@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import org.joda.time.DateTime;
+
+/**
+ * A sweep transaction sent from the wallet to the bank.
+ */
+public class Forward {
+
+    private final Integer recordId;
+    private final String btcTxHash;
+    private final String targetAddress;
+    private final long amount;
+    private final long fee;
+    private final int nbInputs;
+    private final int confirmationDepth;
+    private final DateTime createdDate;
+
+    public Forward(final Integer recordId, final String btcTxHash, final String targetAddress, final long amount, final long fee, final int nbInputs, final int confirmationDepth, final DateTime createdDate) {
+        this.recordId = recordId;
+        this.btcTxHash = btcTxHash;
+        this.targetAddress = targetAddress;
+        this.amount = amount;
+        this.fee = fee;
+        this.nbInputs = nbInputs;
+        this.confirmationDepth = confirmationDepth;
+        this.createdDate = createdDate;
+    }
+
+    public Integer getRecordId() {
+        return recordId;
+    }
+
+    public String getBtcTxHash() {
+        return btcTxHash;
+    }
+
+    public String getTargetAddress() {
+        return targetAddress;
+    }
+
+    // In satoshis, sent to all the destinations (see ForwardDao.getOutputs for each one)
+    public long getAmount() {
+        return amount;
+    }
+
+    // In satoshis
+    public long getFee() {
+        return fee;
+    }
+
+    public int getNbInputs() {
+        return nbInputs;
+    }
+
+    // -1 once the transaction is dead. Only refreshed until the forward has the minimum number of confirmations, so
+    // afterwards this is a lower bound rather than the current depth
+    public int getConfirmationDepth() {
+        return confirmationDepth;
+    }
+
+    public DateTime getCreatedDate() {
+        return createdDate;
+    }
+
+    @Override
+    public String toString() {
+        return "Forward{" +
+               "recordId=" + recordId +
+               ", btcTxHash='" + btcTxHash + '\'' +
+               ", targetAddress='" + targetAddress + '\'' +
+               ", amount=" + amount +
+               ", fee=" + fee +
+               ", nbInputs=" + nbInputs +
+               ", confirmationDepth=" + confirmationDepth +
+               ", createdDate=" + createdDate +
+               '}';
+    }
+}
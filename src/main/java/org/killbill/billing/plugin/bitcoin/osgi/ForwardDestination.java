@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.NetworkParameters;
+
+/**
+ * An address funds are forwarded to, configured as address[:weight[:cap]].
+ * <p/>
+ * Each sweep transaction splits its funds between the destinations proportionally to their weight (1 by default). A
+ * destination with a cap (in satoshis) receives at most that amount per transaction, the rest going to the others.
+ */
+public class ForwardDestination {
+
+    private final Address address;
+    private final int weight;
+    private final BigInteger cap;
+
+    public ForwardDestination(final Address address, final int weight, final BigInteger cap) {
+        this.address = address;
+        this.weight = weight;
+        this.cap = cap;
+    }
+
+    public static ForwardDestination parse(final String destination, final NetworkParameters params) throws AddressFormatException {
+        final String[] parts = destination.trim().split(":");
+        if (parts.length > 3) {
+            throw new IllegalArgumentException("Invalid forward destination " + destination);
+        }
+        final Address address = new Address(params, parts[0].trim());
+        final int weight = parts.length > 1 ? Integer.valueOf(parts[1].trim()) : 1;
+        final BigInteger cap = parts.length > 2 ? new BigInteger(parts[2].trim()) : null;
+        if (weight < 0 || (cap != null && cap.signum() < 0)) {
+            throw new IllegalArgumentException("Invalid forward destination " + destination);
+        }
+        return new ForwardDestination(address, weight, cap);
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    // Null when uncapped
+    public BigInteger getCap() {
+        return cap;
+    }
+
+    @Override
+    public String toString() {
+        return address + ":" + weight + (cap != null ? ":" + cap : "");
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+/**
+ * The amount a forward transaction sent to one of the destinations.
+ */
+public class ForwardOutput {
+
+    private final String btcTxHash;
+    private final String targetAddress;
+    private final long amount;
+
+    public ForwardOutput(final String btcTxHash, final String targetAddress, final long amount) {
+        this.btcTxHash = btcTxHash;
+        this.targetAddress = targetAddress;
+        this.amount = amount;
+    }
+
+    public String getBtcTxHash() {
+        return btcTxHash;
+    }
+
+    public String getTargetAddress() {
+        return targetAddress;
+    }
+
+    // In satoshis
+    public long getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return "ForwardOutput{" +
+               "btcTxHash='" + btcTxHash + '\'' +
+               ", targetAddress='" + targetAddress + '\'' +
+               ", amount=" + amount +
+               '}';
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Pool of receive keys generated ahead of time and already added to the wallet.
+ * <p/>
+ * A background thread refills the pool up to the high watermark whenever it drops below the low watermark, adding
+ * the new keys to the wallet in one call. The addresses still available are saved next to the wallet so they survive
+ * restarts; a key issued right before a crash may be issued again, which is harmless since payments are matched by
+ * transaction.
+ */
+public class KeyPool {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyPool.class);
+
+    private static final long PERSIST_INTERVAL_SEC = 1;
+
+    private final Wallet wallet;
+    private final KeyGenerator keyGenerator;
+    private final NetworkParameters params;
+    private final File poolFile;
+    private final int lowWatermark;
+    private final int highWatermark;
+
+    private final ConcurrentLinkedQueue<ECKey> keys;
+    private final AtomicInteger size;
+    private final AtomicBoolean isRefilling;
+    private final AtomicBoolean isDirty;
+    private final AtomicLong misses;
+    private final ScheduledExecutorService executor;
+
+    public KeyPool(final Wallet wallet, final KeyGenerator keyGenerator, final NetworkParameters params, final File poolFile, final BitcoinConfig config) {
+        this.wallet = wallet;
+        this.keyGenerator = keyGenerator;
+        this.params = params;
+        this.poolFile = poolFile;
+        this.lowWatermark = config.getKeyPoolLowWatermark();
+        this.highWatermark = config.getKeyPoolHighWatermark();
+        this.keys = new ConcurrentLinkedQueue<ECKey>();
+        this.size = new AtomicInteger();
+        this.isRefilling = new AtomicBoolean(false);
+        this.isDirty = new AtomicBoolean(false);
+        this.misses = new AtomicLong();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("bitcoin-key-pool-%d").setDaemon(true).build());
+    }
+
+    public void start() {
+        load();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                persist();
+            }
+        }, PERSIST_INTERVAL_SEC, PERSIST_INTERVAL_SEC, TimeUnit.SECONDS);
+        maybeRefill();
+    }
+
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        persist();
+    }
+
+    public ECKey take() {
+        ECKey key = keys.poll();
+        if (key != null) {
+            size.decrementAndGet();
+            isDirty.set(true);
+        } else {
+            // Pool exhausted, do not make the caller wait for the refill
+            misses.incrementAndGet();
+            key = keyGenerator.generateKeys(1).get(0);
+            wallet.addKey(key);
+        }
+        maybeRefill();
+        return key;
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void maybeRefill() {
+        if (size.get() < lowWatermark && isRefilling.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refill();
+                    } finally {
+                        isRefilling.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    private void refill() {
+        final int nbKeys = highWatermark - size.get();
+        if (nbKeys <= 0) {
+            return;
+        }
+
+        final List<ECKey> newKeys = keyGenerator.generateKeys(nbKeys);
+        // Single wallet lock and save for the whole batch
+        wallet.addKeys(newKeys);
+        keys.addAll(newKeys);
+        size.addAndGet(newKeys.size());
+        isDirty.set(true);
+        persist();
+        log.info("Refilled key pool with " + newKeys.size() + " keys, size = " + size.get());
+    }
+
+    private synchronized void persist() {
+        if (!isDirty.getAndSet(false)) {
+            return;
+        }
+
+        final List<String> addresses = new ArrayList<String>(size.get());
+        for (final ECKey key : keys) {
+            addresses.add(key.toAddress(params).toString());
+        }
+        final File tmpFile = new File(poolFile.getPath() + ".tmp");
+        try {
+            Files.write(Joiner.on('\n').join(addresses), tmpFile, Charsets.UTF_8);
+            Files.move(tmpFile, poolFile);
+        } catch (IOException e) {
+            isDirty.set(true);
+            log.warn("Failed to save key pool to " + poolFile, e);
+        }
+    }
+
+    private void load() {
+        if (!poolFile.exists()) {
+            return;
+        }
+
+        try {
+            for (final String line : Files.readLines(poolFile, Charsets.UTF_8)) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final ECKey key = wallet.findKeyFromPubHash(new Address(params, line.trim()).getHash160());
+                if (key == null) {
+                    log.warn("Ignoring pooled address " + line + " that is not in the wallet");
+                    continue;
+                }
+                keys.add(key);
+                size.incrementAndGet();
+            }
+            log.info("Loaded " + size.get() + " keys from key pool " + poolFile);
+        } catch (IOException e) {
+            log.warn("Failed to load key pool from " + poolFile, e);
+        } catch (AddressFormatException e) {
+            log.warn("Invalid address in key pool " + poolFile, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KeyPool{" +
+               "size=" + size +
+               ", lowWatermark=" + lowWatermark +
+               ", highWatermark=" + highWatermark +
+               ", misses=" + misses +
+               '}';
+    }
+}
@@ -17,6 +17,9 @@
 
 package org.killbill.billing.plugin.bitcoin.osgi;
 
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PaymentApiException;
@@ -30,6 +33,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 
 public class KillbillListener implements OSGIKillbillEventHandler {
@@ -41,6 +46,11 @@ public class KillbillListener implements OSGIKillbillEventHandler {
     private final LogService logService;
     private final OSGIKillbillAPI osgiKillbillAPI;
     private final TransactionManager transactionManager;
+    // Plugin name of each payment method seen, so that non bitcoin payments are filtered without looking up their method
+    private final Cache<UUID, String> pluginNameByPaymentMethodId;
+    // Keeps events of one account in order while accounts are processed in parallel; the bus thread waits for the
+    // payment to be registered, so that a failure or a shutdown leaves the event to be redelivered by the bus
+    private final AccountPartitionedExecutor eventExecutor;
 
     public KillbillListener(final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final TransactionManager transactionManager,
                             final BitcoinConfig config) {
@@ -52,6 +62,11 @@ public class KillbillListener implements OSGIKillbillEventHandler {
             tmp.add(plugin);
         }
         this.BITCOIN_PLUGIN_NAMES = tmp.build();
+        this.pluginNameByPaymentMethodId = CacheBuilder.newBuilder()
+                                                       .maximumSize(config.getPaymentMethodCacheSize())
+                                                       .expireAfterWrite(config.getPaymentMethodCacheTtl().getMillis(), TimeUnit.MILLISECONDS)
+                                                       .build();
+        this.eventExecutor = new AccountPartitionedExecutor("bitcoin-killbill-events", config.getEventThreads(), config.getEventQueueSize());
 
         Joiner join = Joiner.on(",");
         log.info("KillbillListener listening :" + join.join(BITCOIN_PLUGIN_NAMES));
@@ -68,7 +83,12 @@ public class KillbillListener implements OSGIKillbillEventHandler {
                                                      " for object id " + killbillEvent.getObjectId() +
                                                      " of type " + killbillEvent.getObjectType());
 
-                handlePaymentNotification(killbillEvent);
+                eventExecutor.execute(killbillEvent.getAccountId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        handlePaymentNotification(killbillEvent);
+                    }
+                });
                 break;
             default:
                 // ignore
@@ -76,16 +96,24 @@ public class KillbillListener implements OSGIKillbillEventHandler {
         }
     }
 
+    public void stop() {
+        eventExecutor.stop();
+    }
+
+    public AccountPartitionedExecutor getEventExecutor() {
+        return eventExecutor;
+    }
+
     private void handlePaymentNotification(final ExtBusEvent paymentEvent) {
         try {
 
             final BitcoinTenantContext context = new BitcoinTenantContext(paymentEvent.getTenantId());
-            final Payment payment = osgiKillbillAPI.getPaymentApi().getPayment(paymentEvent.getObjectId(), true, context);
-            final PaymentMethod paymentMethod = osgiKillbillAPI.getPaymentApi().getPaymentMethodById(payment.getPaymentMethodId(), false, false, context);
+            // Plugin info is only fetched once we know this is a bitcoin payment
+            final Payment payment = osgiKillbillAPI.getPaymentApi().getPayment(paymentEvent.getObjectId(), false, context);
 
             // Only care about registered bitcoin plugins
-            if (!BITCOIN_PLUGIN_NAMES.contains(paymentMethod.getPluginName())) {
-                log.info("KillbillListener filtering out (not a bitoin paymentMethod) payment " + paymentEvent.getObjectId());
+            if (!BITCOIN_PLUGIN_NAMES.contains(getPluginName(payment.getPaymentMethodId(), context))) {
+                log.debug("KillbillListener filtering out (not a bitoin paymentMethod) payment " + paymentEvent.getObjectId());
                 return;
             }
 
@@ -94,8 +122,9 @@ public class KillbillListener implements OSGIKillbillEventHandler {
                 return;
             }
 
-            final String bitcoinTransactionId = payment.getPaymentInfoPlugin().getFirstPaymentReferenceId();
-            final String bitcoinContractId = payment.getPaymentInfoPlugin().getSecondPaymentReferenceId();
+            final Payment paymentWithPluginInfo = osgiKillbillAPI.getPaymentApi().getPayment(paymentEvent.getObjectId(), true, context);
+            final String bitcoinTransactionId = paymentWithPluginInfo.getPaymentInfoPlugin().getFirstPaymentReferenceId();
+            final String bitcoinContractId = paymentWithPluginInfo.getPaymentInfoPlugin().getSecondPaymentReferenceId();
 
             log.info("KillbillListener registering payment " + paymentEvent.getObjectId() + ", txHash = " + bitcoinTransactionId + ", contractId = " + bitcoinContractId);
             transactionManager.registerPendingPayment(new PendingPayment(paymentEvent.getObjectId(), paymentEvent.getAccountId(), paymentEvent.getTenantId(), bitcoinTransactionId, bitcoinContractId));
@@ -103,4 +132,14 @@ public class KillbillListener implements OSGIKillbillEventHandler {
             logService.log(LogService.LOG_WARNING, "Unable to retrieve payment " + paymentEvent.getObjectId(), e);
         }
     }
+
+    private String getPluginName(final UUID paymentMethodId, final BitcoinTenantContext context) throws PaymentApiException {
+        String pluginName = pluginNameByPaymentMethodId.getIfPresent(paymentMethodId);
+        if (pluginName == null) {
+            final PaymentMethod paymentMethod = osgiKillbillAPI.getPaymentApi().getPaymentMethodById(paymentMethodId, false, false, context);
+            pluginName = paymentMethod.getPluginName();
+            pluginNameByPaymentMethodId.put(paymentMethodId, pluginName);
+        }
+        return pluginName;
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+
+public class NotificationRetry {
+
+    private final Integer recordId;
+    private final UUID paymentId;
+    private final UUID accountId;
+    private final UUID tenantId;
+    private final int attempts;
+    private final DateTime nextRetryDate;
+    private final String lastError;
+
+    public NotificationRetry(final Integer recordId, final UUID paymentId, final UUID accountId, final UUID tenantId, final int attempts, final DateTime nextRetryDate, final String lastError) {
+        this.recordId = recordId;
+        this.paymentId = paymentId;
+        this.accountId = accountId;
+        this.tenantId = tenantId;
+        this.attempts = attempts;
+        this.nextRetryDate = nextRetryDate;
+        this.lastError = lastError;
+    }
+
+    public Integer getRecordId() {
+        return recordId;
+    }
+
+    public UUID getPaymentId() {
+        return paymentId;
+    }
+
+    public UUID getAccountId() {
+        return accountId;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public DateTime getNextRetryDate() {
+        return nextRetryDate;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationRetry{" +
+               "recordId=" + recordId +
+               ", paymentId=" + paymentId +
+               ", accountId=" + accountId +
+               ", tenantId=" + tenantId +
+               ", attempts=" + attempts +
+               ", nextRetryDate=" + nextRetryDate +
+               ", lastError='" + lastError + '\'' +
+               '}';
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.NotificationRetryDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Kill Bill notifications that failed, persisted in btc_notification_retries and retried in batches with an
+ * exponential backoff (half of it randomized, so that payments that failed together do not retry together).
+ * <p/>
+ * Only transient failures (Kill Bill unavailable) are retried. A notification Kill Bill rejects would keep being
+ * rejected, so it is dropped along with its pending payment, as before retries existed. After maxAttempts the retry
+ * moves to the dead letter state: it is kept for inspection but no longer retried, and its payment stays pending.
+ * <p/>
+ * Pending payments whose removal failed after a successful notification are only removed again, never re-notified:
+ * the removal is recorded as a REMOVE row, which also keeps the reconciler away from the payment across restarts.
+ * Only when that row cannot be written either is the removal kept in memory until the database is back.
+ */
+public class NotificationRetryQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationRetryQueue.class);
+
+    private final NotificationRetryDao retryDao;
+    private final PendingPaymentDao paymentDao;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final long pollIntervalMs;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final Random random;
+    private final ScheduledExecutorService scheduler;
+    private final Queue<PendingPayment> pendingRemovals;
+
+    private final AtomicLong scheduled;
+    private final AtomicLong attempted;
+    private final AtomicLong succeeded;
+    private final AtomicLong failed;
+    private final AtomicLong abandoned;
+    private final AtomicLong deadLettered;
+    private final AtomicLong backlog;
+    private final AtomicLong removalBacklog;
+
+    public NotificationRetryQueue(final NotificationRetryDao retryDao, final PendingPaymentDao paymentDao, final BitcoinConfig config) {
+        this(retryDao,
+             paymentDao,
+             config.getNotificationRetryInitialBackoff().getMillis(),
+             config.getNotificationRetryMaxBackoff().getMillis(),
+             config.getNotificationRetryInterval().getMillis(),
+             config.getNotificationRetryBatchSize(),
+             config.getNotificationRetryMaxAttempts());
+    }
+
+    @VisibleForTesting
+    NotificationRetryQueue(final NotificationRetryDao retryDao, final PendingPaymentDao paymentDao, final long initialBackoffMs, final long maxBackoffMs,
+                           final long pollIntervalMs, final int batchSize, final int maxAttempts) {
+        this.retryDao = retryDao;
+        this.paymentDao = paymentDao;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.pollIntervalMs = pollIntervalMs;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.random = new Random();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("bitcoin-notification-retry-%d").setDaemon(true).build());
+        this.pendingRemovals = new ConcurrentLinkedQueue<PendingPayment>();
+        this.scheduled = new AtomicLong();
+        this.attempted = new AtomicLong();
+        this.succeeded = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.abandoned = new AtomicLong();
+        this.deadLettered = new AtomicLong();
+        this.backlog = new AtomicLong();
+        this.removalBacklog = new AtomicLong();
+    }
+
+    public void start(final TransactionManager transactionManager) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain(transactionManager);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to retry Kill Bill notifications", e);
+                }
+            }
+        }, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void add(final PendingPayment pendingPayment, final Exception error) {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        retryDao.insertRetry(pendingPayment, now.plus(getBackoffMs(1)), String.valueOf(error), now);
+        scheduled.incrementAndGet();
+        backlog.incrementAndGet();
+    }
+
+    // Kill Bill was notified but the pending payment could not be removed
+    public void removeLater(final PendingPayment pendingPayment) {
+        try {
+            retryDao.insertRemoval(pendingPayment, new DateTime(DateTimeZone.UTC));
+            removalBacklog.incrementAndGet();
+        } catch (RuntimeException e) {
+            log.warn("Failed to record removal of notified pending payment " + pendingPayment.getPaymentId() + ", keeping it in memory", e);
+            pendingRemovals.add(pendingPayment);
+        }
+    }
+
+    // API exceptions are Kill Bill rejecting the notification (e.g. payment no longer pending), retrying would fail the same way
+    public static boolean isRetryable(final Exception error) {
+        return error instanceof RuntimeException;
+    }
+
+    @VisibleForTesting
+    void drain(final TransactionManager transactionManager) {
+        drainRemovals();
+
+        List<NotificationRetry> due;
+        do {
+            due = retryDao.getDueRetries(new DateTime(DateTimeZone.UTC), batchSize);
+
+            final List<NotificationRetry> done = new ArrayList<NotificationRetry>(due.size());
+            final List<NotificationRetry> rescheduled = new ArrayList<NotificationRetry>();
+            final List<NotificationRetry> dead = new ArrayList<NotificationRetry>();
+            for (final NotificationRetry retry : due) {
+                attempted.incrementAndGet();
+                try {
+                    transactionManager.notifyKillbill(retry.getAccountId(), retry.getPaymentId(), retry.getTenantId());
+                    done.add(retry);
+                } catch (Exception e) {
+                    final int attempts = retry.getAttempts() + 1;
+                    if (!isRetryable(e)) {
+                        log.warn("Kill Bill rejected notification for payment " + retry.getPaymentId() + ", not retrying", e);
+                        abandoned.incrementAndGet();
+                        done.add(retry);
+                    } else if (attempts >= maxAttempts) {
+                        log.warn("Giving up notifying Kill Bill for payment " + retry.getPaymentId() + " after " + attempts + " attempts", e);
+                        dead.add(new NotificationRetry(retry.getRecordId(), retry.getPaymentId(), retry.getAccountId(), retry.getTenantId(), attempts, retry.getNextRetryDate(), String.valueOf(e)));
+                    } else {
+                        final DateTime nextRetryDate = new DateTime(DateTimeZone.UTC).plus(getBackoffMs(attempts));
+                        rescheduled.add(new NotificationRetry(retry.getRecordId(), retry.getPaymentId(), retry.getAccountId(), retry.getTenantId(), attempts, nextRetryDate, String.valueOf(e)));
+                        log.info("Failed to notify Kill Bill for payment " + retry.getPaymentId() + " (attempt " + attempts + "), next retry at " + nextRetryDate, e);
+                    }
+                }
+            }
+
+            // Done rows become removals first: a leftover retry would notify twice, a leftover removal is only removed again
+            retryDao.markRemovals(done);
+            try {
+                removeAll(done);
+            } catch (RuntimeException e) {
+                log.warn("Failed to remove " + done.size() + " notified pending payments, will retry", e);
+            }
+            retryDao.updateRetries(rescheduled);
+            retryDao.deadLetterRetries(dead);
+
+            succeeded.addAndGet(done.size());
+            failed.addAndGet(rescheduled.size());
+            deadLettered.addAndGet(dead.size());
+        } while (due.size() == batchSize && !scheduler.isShutdown());
+
+        backlog.set(retryDao.getNbRetries());
+        removalBacklog.set(retryDao.getNbRemovals());
+    }
+
+    private void drainRemovals() {
+        // Removals that could not be recorded
+        PendingPayment pendingPayment;
+        final List<PendingPayment> notRecorded = new ArrayList<PendingPayment>();
+        while ((pendingPayment = pendingRemovals.poll()) != null) {
+            notRecorded.add(pendingPayment);
+        }
+        for (final PendingPayment cur : notRecorded) {
+            removeLater(cur);
+        }
+
+        List<NotificationRetry> removals;
+        do {
+            removals = retryDao.getRemovals(batchSize);
+            try {
+                removeAll(removals);
+            } catch (RuntimeException e) {
+                log.warn("Failed to remove " + removals.size() + " notified pending payments, will retry", e);
+                return;
+            }
+        } while (removals.size() == batchSize && !scheduler.isShutdown());
+    }
+
+    // Pending payments first, their removal rows are only deleted once the payments are gone
+    private void removeAll(final List<NotificationRetry> removals) {
+        final List<UUID> paymentIds = new ArrayList<UUID>(removals.size());
+        for (final NotificationRetry removal : removals) {
+            paymentIds.add(removal.getPaymentId());
+        }
+        paymentDao.removePendingPayments(paymentIds);
+        retryDao.removeRetries(removals);
+    }
+
+    private long getBackoffMs(final int attempts) {
+        final long backoffMs = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempts - 1, 30));
+        return backoffMs / 2 + (long) (random.nextDouble() * (backoffMs / 2));
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationRetryQueue{" +
+               "backlog=" + backlog +
+               ", scheduled=" + scheduled +
+               ", attempted=" + attempted +
+               ", succeeded=" + succeeded +
+               ", failed=" + failed +
+               ", abandoned=" + abandoned +
+               ", deadLettered=" + deadLettered +
+               ", removalBacklog=" + removalBacklog +
+               ", pendingRemovals=" + pendingRemovals.size() +
+               '}';
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+
+/**
+ * Hash160 of the public keys of the wallet, to match transaction outputs without going through the wallet lock and
+ * key structures.
+ * <p/>
+ * Keys are added as part of the wallet addKey(s) calls, so an output paying to a key is recognized as soon as the key
+ * can be handed out.
+ */
+public class OwnedScripts {
+
+    private final Wallet wallet;
+    private final Set<ByteBuffer> pubKeyHashes;
+    private final WalletEventListener keysListener;
+
+    public OwnedScripts(final Wallet wallet) {
+        this.wallet = wallet;
+        this.pubKeyHashes = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+        this.keysListener = new AbstractWalletEventListener() {
+            @Override
+            public void onKeysAdded(final Wallet wallet, final List<ECKey> keys) {
+                addKeys(keys);
+            }
+        };
+        // Registered first so that no key added meanwhile is missed
+        wallet.addEventListener(keysListener, Threading.SAME_THREAD);
+        addKeys(wallet.getKeys());
+    }
+
+    public void stop() {
+        wallet.removeEventListener(keysListener);
+    }
+
+    // Single pass, outputs that cannot be parsed are not ours
+    public List<TransactionOutput> filterMine(final List<TransactionOutput> outputs) {
+        final List<TransactionOutput> mine = new ArrayList<TransactionOutput>(1);
+        for (final TransactionOutput output : outputs) {
+            if (isMine(output)) {
+                mine.add(output);
+            }
+        }
+        return mine;
+    }
+
+    public boolean isMine(final TransactionOutput output) {
+        try {
+            final Script script = output.getScriptPubKey();
+            if (script.isSentToAddress()) {
+                return pubKeyHashes.contains(ByteBuffer.wrap(script.getPubKeyHash()));
+            } else if (script.isSentToRawPubKey()) {
+                return pubKeyHashes.contains(ByteBuffer.wrap(Utils.sha256hash160(script.getPubKey())));
+            }
+            return false;
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    public int getSize() {
+        return pubKeyHashes.size();
+    }
+
+    private void addKeys(final List<ECKey> keys) {
+        for (final ECKey key : keys) {
+            pubKeyHashes.add(ByteBuffer.wrap(key.getPubKeyHash()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OwnedScripts{" +
+               "size=" + getSize() +
+               '}';
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Volume of transactions matched by the Bloom filter sent to peers, and how many of them actually concern the wallet.
+ * <p/>
+ * This is observation only: the peer group itself rebuilds and resends the filter once the false positive rate
+ * observed by the chain exceeds twice the configured rate, so the rate reported here is the one driving that check.
+ */
+public class PeerGroupMonitor extends AbstractPeerEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerGroupMonitor.class);
+
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+    private final Wallet wallet;
+
+    private final AtomicLong filteredBlocks;
+    private final AtomicLong filteredTransactions;
+    private final AtomicLong relevantTransactions;
+
+    public PeerGroupMonitor(final PeerGroup peerGroup, final AbstractBlockChain chain, final Wallet wallet) {
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+        this.wallet = wallet;
+        this.filteredBlocks = new AtomicLong();
+        this.filteredTransactions = new AtomicLong();
+        this.relevantTransactions = new AtomicLong();
+    }
+
+    @Override
+    public void onBlocksDownloaded(final Peer peer, final Block block, final int blocksLeft) {
+        filteredBlocks.incrementAndGet();
+    }
+
+    @Override
+    public void onTransaction(final Peer peer, final Transaction tx) {
+        filteredTransactions.incrementAndGet();
+        try {
+            if (wallet.isTransactionRelevant(tx)) {
+                relevantTransactions.incrementAndGet();
+            }
+        } catch (ScriptException e) {
+            log.debug("Unable to check relevance of transaction " + tx.getHashAsString(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerGroupMonitor{" +
+               "peers=" + peerGroup.numConnectedPeers() +
+               ", filteredBlocks=" + filteredBlocks +
+               ", filteredTransactions=" + filteredTransactions +
+               ", relevantTransactions=" + relevantTransactions +
+               ", falsePositiveRate=" + String.format("%.6f", chain.getFalsePositiveRate()) +
+               '}';
+    }
+}
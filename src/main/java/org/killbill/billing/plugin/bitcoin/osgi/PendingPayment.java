@@ -27,18 +27,20 @@ public class PendingPayment {
     private final UUID tenantId;
     private final String btcTxHash;
     private final String btcContractId;
+    private final String btcReceiveAddress;
 
     public PendingPayment(final UUID paymentId, final UUID accountId, final UUID tenantId, String btcTxHash, final String btcContractId) {
-        this(-1, paymentId, accountId, tenantId, btcTxHash, btcContractId);
+        this(-1, paymentId, accountId, tenantId, btcTxHash, btcContractId, null);
     }
 
-    public PendingPayment(final Integer recordId, final UUID paymentId, final UUID accountId, final UUID tenantId, String btcTxHash, final String btcContractId) {
+    public PendingPayment(final Integer recordId, final UUID paymentId, final UUID accountId, final UUID tenantId, String btcTxHash, final String btcContractId, final String btcReceiveAddress) {
         this.recordId = recordId;
         this.paymentId = paymentId;
         this.accountId = accountId;
         this.tenantId = tenantId;
         this.btcTxHash = btcTxHash;
         this.btcContractId = btcContractId;
+        this.btcReceiveAddress = btcReceiveAddress;
     }
 
     public Integer getRecordId() {
@@ -65,6 +67,10 @@ public class PendingPayment {
         return btcContractId;
     }
 
+    public String getBtcReceiveAddress() {
+        return btcReceiveAddress;
+    }
+
     @Override
     public String toString() {
         return "PendingPayment{" +
@@ -74,6 +80,7 @@ public class PendingPayment {
                ", tenantId=" + tenantId +
                ", btcTxHash='" + btcTxHash + '\'' +
                ", btcContractId='" + btcContractId + '\'' +
+               ", btcReceiveAddress='" + btcReceiveAddress + '\'' +
                '}';
     }
 
@@ -97,6 +104,9 @@ public class PendingPayment {
         if (btcTxHash != null ? !btcTxHash.equals(that.btcTxHash) : that.btcTxHash != null) {
             return false;
         }
+        if (btcReceiveAddress != null ? !btcReceiveAddress.equals(that.btcReceiveAddress) : that.btcReceiveAddress != null) {
+            return false;
+        }
         if (paymentId != null ? !paymentId.equals(that.paymentId) : that.paymentId != null) {
             return false;
         }
@@ -118,6 +128,7 @@ public class PendingPayment {
         result = 31 * result + (tenantId != null ? tenantId.hashCode() : 0);
         result = 31 * result + (btcTxHash != null ? btcTxHash.hashCode() : 0);
         result = 31 * result + (btcContractId != null ? btcContractId.hashCode() : 0);
+        result = 31 * result + (btcReceiveAddress != null ? btcReceiveAddress.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Catches up on pending payments whose transaction reached the confidence depth while no block event could notify
+ * them (plugin down, dropped confirmation batch).
+ * <p/>
+ * Runs at startup and then periodically, walking btc_pending_payments one page at a time so that memory does not
+ * depend on the table size; the transactions deep enough are handed to the confirmation stage page by page.
+ */
+public class PendingPaymentReconciler {
+
+    private static final Logger log = LoggerFactory.getLogger(PendingPaymentReconciler.class);
+
+    private final PendingPaymentDao paymentDao;
+    private final Wallet wallet;
+    private final ConfirmationProcessor confirmationProcessor;
+    private final int confidenceBlockDepth;
+    private final int pageSize;
+    private final long intervalMs;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong runs;
+    private final AtomicLong scanned;
+    private final AtomicLong submitted;
+    private final AtomicLong lastRunMs;
+
+    public PendingPaymentReconciler(final PendingPaymentDao paymentDao, final Wallet wallet, final ConfirmationProcessor confirmationProcessor, final BitcoinConfig config) {
+        this.paymentDao = paymentDao;
+        this.wallet = wallet;
+        this.confirmationProcessor = confirmationProcessor;
+        this.confidenceBlockDepth = config.getConfidenceBlockDepth();
+        this.pageSize = config.getReconciliationPageSize();
+        this.intervalMs = config.getReconciliationInterval().getMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("bitcoin-reconciliation-%d").setDaemon(true).build());
+        this.runs = new AtomicLong();
+        this.scanned = new AtomicLong();
+        this.submitted = new AtomicLong();
+        this.lastRunMs = new AtomicLong();
+    }
+
+    public void start() {
+        if (intervalMs <= 0) {
+            log.info("Pending payment reconciliation is disabled");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } catch (RuntimeException e) {
+                    log.warn("Failed to reconcile pending payments", e);
+                }
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    public void reconcile() {
+        final long startMs = System.currentTimeMillis();
+        int nbScanned = 0;
+        int nbSubmitted = 0;
+
+        Integer lastRecordId = 0;
+        List<PendingPayment> page;
+        do {
+            page = paymentDao.getPaidPendingPaymentsPage(lastRecordId, pageSize);
+            final List<String> confirmedTxHashes = new ArrayList<String>();
+            for (final PendingPayment payment : page) {
+                lastRecordId = payment.getRecordId();
+                if (isConfirmed(payment.getBtcTxHash())) {
+                    confirmedTxHashes.add(payment.getBtcTxHash());
+                }
+            }
+            nbScanned += page.size();
+            if (!confirmedTxHashes.isEmpty()) {
+                nbSubmitted += confirmationProcessor.submit(confirmedTxHashes);
+            }
+        } while (page.size() == pageSize && !Thread.currentThread().isInterrupted());
+
+        runs.incrementAndGet();
+        scanned.addAndGet(nbScanned);
+        submitted.addAndGet(nbSubmitted);
+        lastRunMs.set(System.currentTimeMillis() - startMs);
+        if (nbSubmitted > 0) {
+            log.info("Reconciliation found " + nbSubmitted + " confirmed transaction(s) out of " + nbScanned + " pending payment(s)");
+        }
+    }
+
+    // In-memory lookup in the wallet transaction map
+    private boolean isConfirmed(final String btcTxHash) {
+        final Transaction tx = wallet.getTransaction(new Sha256Hash(btcTxHash));
+        if (tx == null) {
+            return false;
+        }
+        final TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= confidenceBlockDepth;
+    }
+
+    @Override
+    public String toString() {
+        return "PendingPaymentReconciler{" +
+               "runs=" + runs +
+               ", scanned=" + scanned +
+               ", submitted=" + submitted +
+               ", lastRunMs=" + lastRunMs +
+               '}';
+    }
+}
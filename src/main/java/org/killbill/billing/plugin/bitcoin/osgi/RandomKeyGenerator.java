@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.bitcoin.core.ECKey;
+
+/**
+ * Independent random keys: each one must be backed up on its own.
+ */
+public class RandomKeyGenerator implements KeyGenerator {
+
+    @Override
+    public List<ECKey> generateKeys(final int nbKeys) {
+        final List<ECKey> keys = new ArrayList<ECKey>(nbKeys);
+        for (int i = 0; i < nbKeys; i++) {
+            keys.add(new ECKey());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+/**
+ * Builds the sweep transactions spending a given set of outputs to the forward destinations, with an explicit fee
+ * and no change output unless every destination is capped.
+ */
+final class SweepRequests {
+
+    private static final Logger log = LoggerFactory.getLogger(SweepRequests.class);
+
+    // Pay-to-pubkey-hash sizes in bytes, the input one with a compressed key signature
+    static final int INPUT_SIZE = 148;
+    private static final int OUTPUT_SIZE = 34;
+    private static final int TX_OVERHEAD_SIZE = 10;
+
+    private static final Comparator<TransactionOutput> LARGEST_FIRST = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(final TransactionOutput o1, final TransactionOutput o2) {
+            return o2.getValue().compareTo(o1.getValue());
+        }
+    };
+
+    private SweepRequests() {
+    }
+
+    // Outputs the wallet can spend worth at least minValue, largest first
+    static List<TransactionOutput> getSpendableOutputs(final Wallet wallet, final BigInteger minValue) {
+        final List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        int nbDust = 0;
+        for (final Transaction tx : wallet.getTransactions(false)) {
+            if (!DefaultCoinSelector.isSelectable(tx)) {
+                continue;
+            }
+            for (final TransactionOutput output : tx.getOutputs()) {
+                if (!output.isAvailableForSpending() || !output.isMine(wallet)) {
+                    continue;
+                }
+                if (output.getValue().compareTo(minValue) < 0) {
+                    nbDust++;
+                    continue;
+                }
+                outputs.add(output);
+            }
+        }
+        if (nbDust > 0) {
+            log.info("Skipping " + nbDust + " outputs worth less than " + minValue + " satoshis");
+        }
+        Collections.sort(outputs, LARGEST_FIRST);
+        return outputs;
+    }
+
+    // Null if the inputs are not worth enough to pay the fee and a non dust output
+    static Wallet.SendRequest create(final Wallet wallet, final Collection<TransactionOutput> inputs, final List<ForwardDestination> destinations, final BigInteger feePerKb) {
+        BigInteger valueGathered = BigInteger.ZERO;
+        for (final TransactionOutput input : inputs) {
+            valueGathered = valueGathered.add(input.getValue());
+        }
+        // Same rounding as the wallet fee calculation, one more output in case of change
+        final int size = TX_OVERHEAD_SIZE + inputs.size() * INPUT_SIZE + (destinations.size() + 1) * OUTPUT_SIZE;
+        final BigInteger fee = feePerKb.multiply(BigInteger.valueOf(size / 1000 + 1));
+
+        final List<BigInteger> amounts = allocate(valueGathered.subtract(fee), destinations);
+        final Transaction tx = new Transaction(wallet.getNetworkParameters());
+        for (int i = 0; i < destinations.size(); i++) {
+            if (amounts.get(i).signum() > 0) {
+                tx.addOutput(amounts.get(i), destinations.get(i).getAddress());
+            }
+        }
+        if (tx.getOutputs().isEmpty()) {
+            return null;
+        }
+
+        final Wallet.SendRequest req = Wallet.SendRequest.forTx(tx);
+        req.fee = fee;
+        req.feePerKb = BigInteger.ZERO;
+        req.ensureMinRequiredFee = false;
+        req.coinSelector = new FixedCoinSelector(inputs);
+        return req;
+    }
+
+    // Splits total by weight, capped destinations are served first and the rounding goes to the last one.
+    // Destinations whose share would be dust are left out of the transaction.
+    static List<BigInteger> allocate(final BigInteger total, final List<ForwardDestination> destinations) {
+        final Set<Integer> excluded = new HashSet<Integer>();
+        while (true) {
+            final List<BigInteger> amounts = allocate(total, destinations, excluded);
+            boolean hasDust = false;
+            for (int i = 0; i < amounts.size(); i++) {
+                if (amounts.get(i).signum() > 0 && amounts.get(i).compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0) {
+                    excluded.add(i);
+                    hasDust = true;
+                }
+            }
+            if (!hasDust) {
+                return amounts;
+            }
+        }
+    }
+
+    private static List<BigInteger> allocate(final BigInteger total, final List<ForwardDestination> destinations, final Set<Integer> excluded) {
+        final List<BigInteger> amounts = new ArrayList<BigInteger>(destinations.size());
+        final List<Integer> active = new LinkedList<Integer>();
+        for (int i = 0; i < destinations.size(); i++) {
+            amounts.add(BigInteger.ZERO);
+            if (destinations.get(i).getWeight() > 0 && !excluded.contains(i)) {
+                active.add(i);
+            }
+        }
+
+        BigInteger remaining = total;
+        while (!active.isEmpty() && remaining.signum() > 0) {
+            long sumWeights = 0;
+            for (final Integer i : active) {
+                sumWeights += destinations.get(i).getWeight();
+            }
+
+            // Capped destinations get their cap, the others share what is left
+            boolean isCapped = false;
+            for (final Integer i : new ArrayList<Integer>(active)) {
+                final BigInteger cap = destinations.get(i).getCap();
+                if (cap != null && share(remaining, destinations.get(i).getWeight(), sumWeights).compareTo(cap) >= 0) {
+                    amounts.set(i, cap);
+                    remaining = remaining.subtract(cap);
+                    active.remove(i);
+                    isCapped = true;
+                }
+            }
+            if (isCapped) {
+                continue;
+            }
+
+            BigInteger assigned = BigInteger.ZERO;
+            for (int j = 0; j < active.size() - 1; j++) {
+                final Integer i = active.get(j);
+                final BigInteger share = share(remaining, destinations.get(i).getWeight(), sumWeights);
+                amounts.set(i, share);
+                assigned = assigned.add(share);
+            }
+            amounts.set(active.get(active.size() - 1), remaining.subtract(assigned));
+            break;
+        }
+        return amounts;
+    }
+
+    private static BigInteger share(final BigInteger total, final int weight, final long sumWeights) {
+        return total.multiply(BigInteger.valueOf(weight)).divide(BigInteger.valueOf(sumWeights));
+    }
+
+    // Selects the given outputs the wallet still considers spendable
+    private static final class FixedCoinSelector implements CoinSelector {
+
+        private final Set<TransactionOutput> outputs;
+
+        private FixedCoinSelector(final Collection<TransactionOutput> outputs) {
+            this.outputs = Collections.newSetFromMap(new IdentityHashMap<TransactionOutput, Boolean>());
+            this.outputs.addAll(outputs);
+        }
+
+        @Override
+        public CoinSelection select(final BigInteger target, final LinkedList<TransactionOutput> candidates) {
+            final List<TransactionOutput> gathered = new ArrayList<TransactionOutput>(outputs.size());
+            BigInteger valueGathered = BigInteger.ZERO;
+            for (final TransactionOutput candidate : candidates) {
+                if (outputs.contains(candidate)) {
+                    gathered.add(candidate);
+                    valueGathered = valueGathered.add(candidate.getValue());
+                }
+            }
+            return new CoinSelection(valueGathered, gathered);
+        }
+    }
+}
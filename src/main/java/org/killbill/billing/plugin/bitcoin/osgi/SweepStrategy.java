@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.List;
+
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * How the wallet funds are moved to the bank by the {@link BankForwarder}.
+ */
+public interface SweepStrategy {
+
+    public interface Listener {
+
+        // Called right after each transaction is committed to the wallet, before the next one is built
+        public void onSent(Wallet.SendResult result);
+    }
+
+    // Returns the transactions sent, already committed to the wallet and broadcast. If a transaction fails, the ones
+    // sent before it have already been reported to the listener.
+    public List<Wallet.SendResult> sweep(Wallet wallet, List<ForwardDestination> destinations, Listener listener) throws InsufficientMoneyException;
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.DownloadListener;
+import com.google.bitcoin.core.Peer;
+
+/**
+ * Block chain download progress, as reported by the peer group while the wallet kit is syncing.
+ */
+public class SyncProgress extends DownloadListener {
+
+    private volatile int initialBlocks;
+    private volatile int blocksRemaining;
+    private volatile long startNanos;
+    private volatile boolean isDone;
+
+    public SyncProgress() {
+        this.initialBlocks = -1;
+        this.blocksRemaining = -1;
+        this.isDone = false;
+    }
+
+    @Override
+    protected void startDownload(final int blocks) {
+        super.startDownload(blocks);
+        this.startNanos = System.nanoTime();
+        this.initialBlocks = blocks;
+        this.blocksRemaining = blocks;
+    }
+
+    @Override
+    public void onBlocksDownloaded(final Peer peer, final Block block, final int blocksLeft) {
+        super.onBlocksDownloaded(peer, block, blocksLeft);
+        this.blocksRemaining = blocksLeft;
+    }
+
+    @Override
+    protected void doneDownload() {
+        super.doneDownload();
+        this.blocksRemaining = 0;
+        this.isDone = true;
+    }
+
+    // -1 until the download has started
+    public int getBlocksRemaining() {
+        return blocksRemaining;
+    }
+
+    public double getBlocksPerSecond() {
+        if (initialBlocks < 0) {
+            return 0;
+        }
+        final double elapsedSec = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        return elapsedSec <= 0 ? 0 : (initialBlocks - blocksRemaining) / elapsedSec;
+    }
+
+    // Rough estimate of the time left, -1 when unknown
+    public long getEstimatedSecondsRemaining() {
+        if (isDone) {
+            return 0;
+        }
+        final double blocksPerSecond = getBlocksPerSecond();
+        return blocksRemaining < 0 || blocksPerSecond <= 0 ? -1 : (long) Math.ceil(blocksRemaining / blocksPerSecond);
+    }
+
+    @Override
+    public String toString() {
+        return "SyncProgress{" +
+               "blocksRemaining=" + blocksRemaining +
+               ", blocksPerSecond=" + String.format("%.1f", getBlocksPerSecond()) +
+               ", estimatedSecondsRemaining=" + getEstimatedSecondsRemaining() +
+               '}';
+    }
+}
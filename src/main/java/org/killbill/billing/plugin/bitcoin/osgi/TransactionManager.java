@@ -17,30 +17,59 @@
 
 package org.killbill.billing.plugin.bitcoin.osgi;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.payment.api.PaymentApiException;
 import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentWriteBuffer;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
 import org.osgi.service.log.LogService;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class TransactionManager {
 
+    private static final int MAX_RECENTLY_REGISTERED = 10000;
+    private static final long RECENTLY_REGISTERED_TTL_MIN = 60;
+
     private final LogService logService;
     private final OSGIKillbillAPI osgiKillbillAPI;
     private final BitcoinConfig config;
     private final PendingPaymentDao dao;
+    private final PendingPaymentWriteBuffer writeBuffer;
+    private final NotificationRetryQueue retryQueue;
+    // Filters out bus redeliveries before they reach the database
+    private final Cache<UUID, Boolean> recentlyRegistered;
 
-    public TransactionManager(final LogService logService, final OSGIKillbillAPI osgiKillbillAPI, final PendingPaymentDao dao, final BitcoinConfig config) {
+    public TransactionManager(final LogService logService, final OSGIKillbillAPI osgiKillbillAPI, final PendingPaymentDao dao, final PendingPaymentWriteBuffer writeBuffer,
+                              final NotificationRetryQueue retryQueue, final BitcoinConfig config) {
         this.logService = logService;
         this.osgiKillbillAPI = osgiKillbillAPI;
         this.config = config;
         this.dao = dao;
+        this.writeBuffer = writeBuffer;
+        this.retryQueue = retryQueue;
+        this.recentlyRegistered = CacheBuilder.newBuilder()
+                                              .maximumSize(MAX_RECENTLY_REGISTERED)
+                                              .expireAfterWrite(RECENTLY_REGISTERED_TTL_MIN, TimeUnit.MINUTES)
+                                              .build();
     }
 
     public void registerPendingPayment(final PendingPayment pendingPayment) {
-        dao.insertPendingPayment(pendingPayment);
+        if (recentlyRegistered.getIfPresent(pendingPayment.getPaymentId()) != null) {
+            return;
+        }
+        // Waits for the batched insert: a failure goes back to the bus, which redelivers the event
+        writeBuffer.addAndWait(pendingPayment);
+        // Only once written, so that a redelivery after a failure is not filtered out
+        recentlyRegistered.put(pendingPayment.getPaymentId(), Boolean.TRUE);
     }
 
     public boolean notifyPaymentSystemIfExists(final String hash) {
@@ -50,18 +79,49 @@ public class TransactionManager {
             return false;
         }
 
-        final CallContext context = new BitcoinCallContext(pendingPayment.getTenantId(), config.getConfidenceBlockDepth());
+        notifyPaymentSystem(pendingPayment);
+        return true;
+    }
+
+    public int notifyPaymentSystemIfExists(final Collection<String> hashes) {
+
+        final List<PendingPayment> pendingPayments = dao.getByBtcTransactionIds(hashes);
+        for (final PendingPayment pendingPayment : pendingPayments) {
+            notifyPaymentSystem(pendingPayment);
+        }
+        return pendingPayments.size();
+    }
+
+    public void notifyKillbill(final UUID accountId, final UUID paymentId, final UUID tenantId) throws AccountApiException, PaymentApiException {
+        final CallContext context = new BitcoinCallContext(tenantId, config.getConfidenceBlockDepth());
+        final Account account = osgiKillbillAPI.getAccountUserApi().getAccountById(accountId, context);
+        osgiKillbillAPI.getPaymentApi().notifyPendingPaymentOfStateChanged(account, paymentId, true, context);
+    }
+
+    private void notifyPaymentSystem(final PendingPayment pendingPayment) {
         try {
-            final Account account = osgiKillbillAPI.getAccountUserApi().getAccountById(pendingPayment.getAccountId(), context);
-            osgiKillbillAPI.getPaymentApi().notifyPendingPaymentOfStateChanged(account, pendingPayment.getPaymentId(), true, context);
+            notifyKillbill(pendingPayment.getAccountId(), pendingPayment.getPaymentId(), pendingPayment.getTenantId());
         } catch (PaymentApiException e) {
+            // Retrying would probably end up in the same result
             logService.log(LogService.LOG_WARNING, "Failed to notify payment service for bitcoin completion, payment =  " + pendingPayment.getPaymentId());
         } catch (AccountApiException e) {
             logService.log(LogService.LOG_WARNING, "Failed to notify payment service for bitcoin completion, account =  " + pendingPayment.getAccountId());
-        } finally {
-            // If we fail we still remove it as retrying would probably end up in the same result.
+        } catch (RuntimeException e) {
+            // Kill Bill unavailable
+            logService.log(LogService.LOG_WARNING, "Failed to notify payment service for bitcoin completion, will retry, payment =  " + pendingPayment.getPaymentId(), e);
+            retryQueue.add(pendingPayment, e);
+            return;
+        }
+        removePendingPayment(pendingPayment);
+    }
+
+    // Kill Bill must not be notified again if only the removal fails
+    private void removePendingPayment(final PendingPayment pendingPayment) {
+        try {
             dao.removePendingPayment(pendingPayment.getPaymentId());
+        } catch (RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to remove notified pending payment, will retry, payment =  " + pendingPayment.getPaymentId(), e);
+            retryQueue.removeLater(pendingPayment);
         }
-        return true;
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import javax.sql.DataSource;
+
+import org.skife.jdbi.v2.DBI;
+
+/**
+ * The DBI shared by all the plugin DAOs, timing every statement.
+ * <p/>
+ * Parsed SQL is already cached per SQL string by the default JDBI rewriter, and prepared statements are cached by the
+ * Kill Bill data source (cachePrepStmts on the MySQL driver), so neither is done again here.
+ */
+public class BitcoinDBI extends DBI {
+
+    private final StatementTimingCollector timingCollector;
+
+    public BitcoinDBI(final DataSource dataSource) {
+        super(dataSource);
+        this.timingCollector = new StatementTimingCollector();
+        setTimingCollector(timingCollector);
+    }
+
+    public StatementTimingCollector getTimingCollector() {
+        return timingCollector;
+    }
+}
@@ -19,53 +19,29 @@ package org.killbill.billing.plugin.bitcoin.osgi.dao;
 
 import java.util.UUID;
 
-import javax.sql.DataSource;
-
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.killbill.billing.plugin.bitcoin.osgi.Contract;
 import org.skife.jdbi.v2.DBI;
-import org.skife.jdbi.v2.Handle;
-import org.skife.jdbi.v2.TransactionCallback;
-import org.skife.jdbi.v2.TransactionStatus;
 
 public class ContractDao {
 
-    private final DBI dbi;
-    private final ContractMapper contractMapper;
+    private final ContractSqlDao sqlDao;
 
-    public ContractDao(final DataSource dataSource) {
-        this.dbi = new DBI(dataSource);
-        this.contractMapper = new ContractMapper();
+    public ContractDao(final DBI dbi) {
+        this.sqlDao = dbi.onDemand(ContractSqlDao.class);
     }
 
     public void insertContract(final Contract contract) {
-        dbi.inTransaction(new TransactionCallback<Void>() {
-            @Override
-            public Void inTransaction(Handle h, TransactionStatus status) throws Exception {
-                h.createStatement("insert into btc_contracts (entity_id, object_type, contract_id, start_date, end_date, created_date) VALUES (:entity_id, :object_type, :contract_id, :start_date, :end_date, :created_date)")
-                 .bind("entity_id", contract.getBitcoinSubscriptionId().getEntityId().toString())
-                 .bind("object_type", contract.getBitcoinSubscriptionId().getAlignment().name())
-                 .bind("contract_id", contract.getContractId().toString())
-                 .bind("start_date", contract.getStartDate().toDate())
-                 .bind("endDate", contract.getEndDate() == null ? null : contract.getEndDate().toDate())
-                 .bind("created_date", new DateTime(DateTimeZone.UTC).toDate())
-                 .execute();
-                return null;
-            }
-        });
+        sqlDao.insert(contract.getBitcoinSubscriptionId().getEntityId().toString(),
+                      contract.getBitcoinSubscriptionId().getAlignment().name(),
+                      contract.getContractId().toString(),
+                      contract.getStartDate().toDate(),
+                      contract.getEndDate() == null ? null : contract.getEndDate().toDate(),
+                      new DateTime(DateTimeZone.UTC).toDate());
     }
 
     public Contract getContract(final UUID contractId) {
-        return dbi.inTransaction(new TransactionCallback<Contract>() {
-
-            @Override
-            public Contract inTransaction(Handle h, TransactionStatus status) throws Exception {
-                return h.createQuery("select * from btc_contracts where contract_id = :contract_id")
-                        .bind("contract_id", contractId.toString())
-                        .map(contractMapper)
-                        .first();
-            }
-        });
+        return sqlDao.getByContractId(contractId.toString());
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.Date;
+
+import org.killbill.billing.plugin.bitcoin.osgi.Contract;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+
+@RegisterMapper(ContractMapper.class)
+public interface ContractSqlDao {
+
+    @SqlUpdate("insert into btc_contracts (entity_id, object_type, contract_id, start_date, end_date, created_date) VALUES (:entity_id, :object_type, :contract_id, :start_date, :end_date, :created_date)")
+    void insert(@Bind("entity_id") String entityId,
+                @Bind("object_type") String objectType,
+                @Bind("contract_id") String contractId,
+                @Bind("start_date") Date startDate,
+                @Bind("end_date") Date endDate,
+                @Bind("created_date") Date createdDate);
+
+    @SqlQuery("select * from btc_contracts where contract_id = :contract_id")
+    Contract getByContractId(@Bind("contract_id") String contractId);
+}
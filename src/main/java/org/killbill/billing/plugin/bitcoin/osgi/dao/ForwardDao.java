@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.bitcoin.osgi.Forward;
+import org.killbill.billing.plugin.bitcoin.osgi.ForwardOutput;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Ledger of the sweeps sent to the bank, kept so that sweeps can be reported and so that a new sweep does not start
+ * while the previous one is unconfirmed.
+ * <p/>
+ * Each forward has one btc_forwards row, with the comma separated destinations and the total amount, and one
+ * btc_forward_outputs row per destination with the amount it received.
+ */
+public class ForwardDao {
+
+    private final DBI dbi;
+    private final ForwardSqlDao sqlDao;
+
+    public ForwardDao(final DBI dbi) {
+        this.dbi = dbi;
+        this.sqlDao = dbi.onDemand(ForwardSqlDao.class);
+    }
+
+    // Amounts by destination address, in satoshis
+    public void insertForward(final String btcTxHash, final Map<String, Long> amounts, final long fee, final int nbInputs, final DateTime createdDate) {
+        final List<String> targetAddresses = new ArrayList<String>(amounts.keySet());
+        final List<Long> outputAmounts = new ArrayList<Long>(amounts.values());
+        long amount = 0;
+        for (final Long outputAmount : outputAmounts) {
+            amount += outputAmount;
+        }
+        final long totalAmount = amount;
+
+        dbi.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void inTransaction(final Handle h, final TransactionStatus status) throws Exception {
+                final ForwardSqlDao transactional = h.attach(ForwardSqlDao.class);
+                transactional.insert(btcTxHash, Joiner.on(',').join(targetAddresses), totalAmount, fee, nbInputs, createdDate.toDate());
+                if (!targetAddresses.isEmpty()) {
+                    transactional.insertOutputBatch(btcTxHash, targetAddresses, outputAmounts, createdDate.toDate());
+                }
+                return null;
+            }
+        });
+    }
+
+    public List<ForwardOutput> getOutputs(final String btcTxHash) {
+        return sqlDao.getOutputs(btcTxHash);
+    }
+
+    public Forward getByBtcTransactionId(final String btcTxHash) {
+        return sqlDao.getByBtcTransactionId(btcTxHash);
+    }
+
+    // Forwards not dead and not yet minDepth deep: the depth is only refreshed while in flight
+    public List<Forward> getInFlightForwards(final int minDepth) {
+        return sqlDao.getInFlight(minDepth);
+    }
+
+    public void updateConfirmationDepths(final Map<Forward, Integer> depths, final DateTime updatedDate) {
+        if (depths.isEmpty()) {
+            return;
+        }
+
+        final List<Integer> recordIds = new ArrayList<Integer>(depths.size());
+        final List<Integer> confirmationDepths = new ArrayList<Integer>(depths.size());
+        for (final Map.Entry<Forward, Integer> entry : depths.entrySet()) {
+            recordIds.add(entry.getKey().getRecordId());
+            confirmationDepths.add(entry.getValue());
+        }
+        sqlDao.updateDepthBatch(recordIds, confirmationDepths, updatedDate.toDate());
+    }
+
+    // Most recent first
+    public List<Forward> getForwards(final DateTime from, final DateTime to, final int limit) {
+        return sqlDao.getHistory(from.toDate(), to.toDate(), limit);
+    }
+}
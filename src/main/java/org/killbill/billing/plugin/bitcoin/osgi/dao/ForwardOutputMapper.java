@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.killbill.billing.plugin.bitcoin.osgi.ForwardOutput;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+public class ForwardOutputMapper implements ResultSetMapper<ForwardOutput> {
+
+    @Override
+    public ForwardOutput map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+        final String btcTxHash = r.getString("btc_tx");
+        final String targetAddress = r.getString("target_address");
+        final long amount = r.getLong("amount");
+        return new ForwardOutput(btcTxHash, targetAddress, amount);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.killbill.billing.plugin.bitcoin.osgi.Forward;
+import org.killbill.billing.plugin.bitcoin.osgi.ForwardOutput;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+
+@RegisterMapper({ForwardMapper.class, ForwardOutputMapper.class})
+public interface ForwardSqlDao {
+
+    // Idempotent on btc_tx, so that a ledger write retried after an ambiguous failure does not fail on the unique index
+    @SqlUpdate("insert into btc_forwards (btc_tx, target_address, amount, fee, nb_inputs, confirmation_depth, created_date, updated_date)" +
+               " select :btc_tx, :target_address, :amount, :fee, :nb_inputs, 0, :created_date, :created_date from dual" +
+               " where not exists (select 1 from btc_forwards where btc_tx = :btc_tx)")
+    void insert(@Bind("btc_tx") String btcTxHash,
+                @Bind("target_address") String targetAddress,
+                @Bind("amount") long amount,
+                @Bind("fee") long fee,
+                @Bind("nb_inputs") int nbInputs,
+                @Bind("created_date") Date createdDate);
+
+    @SqlBatch("insert into btc_forward_outputs (btc_tx, target_address, amount, created_date)" +
+              " select :btc_tx, :target_address, :amount, :created_date from dual" +
+              " where not exists (select 1 from btc_forward_outputs where btc_tx = :btc_tx and target_address = :target_address)")
+    void insertOutputBatch(@Bind("btc_tx") String btcTxHash,
+                           @Bind("target_address") List<String> targetAddresses,
+                           @Bind("amount") List<Long> amounts,
+                           @Bind("created_date") Date createdDate);
+
+    @SqlQuery("select * from btc_forward_outputs where btc_tx = :btc_tx order by record_id asc")
+    List<ForwardOutput> getOutputs(@Bind("btc_tx") String btcTxHash);
+
+    @SqlQuery("select * from btc_forwards where btc_tx = :btc_tx")
+    Forward getByBtcTransactionId(@Bind("btc_tx") String btcTxHash);
+
+    @SqlQuery("select * from btc_forwards where confirmation_depth >= 0 and confirmation_depth < :min_depth")
+    List<Forward> getInFlight(@Bind("min_depth") int minDepth);
+
+    @SqlBatch("update btc_forwards set confirmation_depth = :confirmation_depth, updated_date = :updated_date where record_id = :record_id")
+    void updateDepthBatch(@Bind("record_id") List<Integer> recordIds,
+                          @Bind("confirmation_depth") List<Integer> confirmationDepths,
+                          @Bind("updated_date") Date updatedDate);
+
+    @SqlQuery("select * from btc_forwards where created_date >= :from_date and created_date < :to_date order by created_date desc limit :limit")
+    List<Forward> getHistory(@Bind("from_date") Date fromDate,
+                             @Bind("to_date") Date toDate,
+                             @Bind("limit") int limit);
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.bitcoin.osgi.NotificationRetry;
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.skife.jdbi.v2.DBI;
+
+public class NotificationRetryDao {
+
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final NotificationRetrySqlDao sqlDao;
+
+    public NotificationRetryDao(final DBI dbi) {
+        this.sqlDao = dbi.onDemand(NotificationRetrySqlDao.class);
+    }
+
+    public void insertRetry(final PendingPayment payment, final DateTime nextRetryDate, final String error, final DateTime createdDate) {
+        sqlDao.insert(payment.getPaymentId().toString(),
+                      payment.getAccountId().toString(),
+                      payment.getTenantId() != null ? payment.getTenantId().toString() : null,
+                      nextRetryDate.toDate(),
+                      truncate(error),
+                      createdDate.toDate());
+    }
+
+    public void insertRemoval(final PendingPayment payment, final DateTime createdDate) {
+        sqlDao.insertRemoval(payment.getPaymentId().toString(),
+                             payment.getAccountId().toString(),
+                             payment.getTenantId() != null ? payment.getTenantId().toString() : null,
+                             createdDate.toDate());
+    }
+
+    public List<NotificationRetry> getDueRetries(final DateTime now, final int limit) {
+        return sqlDao.getDue(now.toDate(), limit);
+    }
+
+    public int getNbRetries() {
+        return sqlDao.count("RETRY");
+    }
+
+    public int getNbDeadLetters() {
+        return sqlDao.count("DEAD");
+    }
+
+    public List<NotificationRetry> getRemovals(final int limit) {
+        return sqlDao.getRemovals(limit);
+    }
+
+    public int getNbRemovals() {
+        return sqlDao.count("REMOVE");
+    }
+
+    // The notification succeeded: from now on the payment is only removed, never notified again
+    public void markRemovals(final Collection<NotificationRetry> retries) {
+        if (retries.isEmpty()) {
+            return;
+        }
+
+        final List<Integer> recordIds = new ArrayList<Integer>(retries.size());
+        for (final NotificationRetry retry : retries) {
+            recordIds.add(retry.getRecordId());
+        }
+        sqlDao.markRemovalBatch(recordIds);
+    }
+
+    // Each retry gets its own next attempt date and error
+    public void updateRetries(final Collection<NotificationRetry> retries) {
+        if (retries.isEmpty()) {
+            return;
+        }
+
+        final List<Integer> recordIds = new ArrayList<Integer>(retries.size());
+        final List<Integer> attempts = new ArrayList<Integer>(retries.size());
+        final List<Date> nextRetryDates = new ArrayList<Date>(retries.size());
+        final List<String> lastErrors = new ArrayList<String>(retries.size());
+        for (final NotificationRetry retry : retries) {
+            recordIds.add(retry.getRecordId());
+            attempts.add(retry.getAttempts());
+            nextRetryDates.add(retry.getNextRetryDate().toDate());
+            lastErrors.add(truncate(retry.getLastError()));
+        }
+        sqlDao.updateBatch(recordIds, attempts, nextRetryDates, lastErrors);
+    }
+
+    public void deadLetterRetries(final Collection<NotificationRetry> retries) {
+        if (retries.isEmpty()) {
+            return;
+        }
+
+        final List<Integer> recordIds = new ArrayList<Integer>(retries.size());
+        final List<Integer> attempts = new ArrayList<Integer>(retries.size());
+        final List<String> lastErrors = new ArrayList<String>(retries.size());
+        for (final NotificationRetry retry : retries) {
+            recordIds.add(retry.getRecordId());
+            attempts.add(retry.getAttempts());
+            lastErrors.add(truncate(retry.getLastError()));
+        }
+        sqlDao.deadLetterBatch(recordIds, attempts, lastErrors);
+    }
+
+    public void removeRetries(final Collection<NotificationRetry> retries) {
+        if (retries.isEmpty()) {
+            return;
+        }
+
+        final List<Integer> recordIds = new ArrayList<Integer>(retries.size());
+        for (final NotificationRetry retry : retries) {
+            recordIds.add(retry.getRecordId());
+        }
+        sqlDao.deleteBatch(recordIds);
+    }
+
+    private String truncate(final String error) {
+        return error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.killbill.billing.plugin.bitcoin.osgi.NotificationRetry;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+
+@RegisterMapper(NotificationRetryMapper.class)
+public interface NotificationRetrySqlDao {
+
+    // A payment already waiting for a retry keeps its schedule
+    @SqlUpdate("insert into btc_notification_retries (payment_id, account_id, tenant_id, attempts, next_retry_date, last_error, created_date) VALUES (:payment_id, :account_id, :tenant_id, 1, :next_retry_date, :last_error, :created_date)" +
+               " on duplicate key update record_id = record_id")
+    void insert(@Bind("payment_id") String paymentId,
+                @Bind("account_id") String accountId,
+                @Bind("tenant_id") String tenantId,
+                @Bind("next_retry_date") Date nextRetryDate,
+                @Bind("last_error") String lastError,
+                @Bind("created_date") Date createdDate);
+
+    // Kill Bill was notified, only the pending payment is left to remove: a pending retry of the payment is replaced
+    @SqlUpdate("insert into btc_notification_retries (payment_id, account_id, tenant_id, attempts, next_retry_date, state, created_date) VALUES (:payment_id, :account_id, :tenant_id, 0, :created_date, 'REMOVE', :created_date)" +
+               " on duplicate key update state = 'REMOVE'")
+    void insertRemoval(@Bind("payment_id") String paymentId,
+                       @Bind("account_id") String accountId,
+                       @Bind("tenant_id") String tenantId,
+                       @Bind("created_date") Date createdDate);
+
+    @SqlQuery("select * from btc_notification_retries where state = 'RETRY' and next_retry_date <= :now order by next_retry_date asc limit :limit")
+    List<NotificationRetry> getDue(@Bind("now") Date now,
+                                   @Bind("limit") int limit);
+
+    @SqlQuery("select * from btc_notification_retries where state = 'REMOVE' order by record_id asc limit :limit")
+    List<NotificationRetry> getRemovals(@Bind("limit") int limit);
+
+    @SqlQuery("select count(*) from btc_notification_retries where state = :state")
+    int count(@Bind("state") String state);
+
+    @SqlBatch("update btc_notification_retries set attempts = :attempts, next_retry_date = :next_retry_date, last_error = :last_error where record_id = :record_id")
+    void updateBatch(@Bind("record_id") List<Integer> recordIds,
+                     @Bind("attempts") List<Integer> attempts,
+                     @Bind("next_retry_date") List<Date> nextRetryDates,
+                     @Bind("last_error") List<String> lastErrors);
+
+    // Dead letters are kept for inspection, their payment is no longer reconciled
+    @SqlBatch("update btc_notification_retries set state = 'DEAD', attempts = :attempts, last_error = :last_error where record_id = :record_id")
+    void deadLetterBatch(@Bind("record_id") List<Integer> recordIds,
+                         @Bind("attempts") List<Integer> attempts,
+                         @Bind("last_error") List<String> lastErrors);
+
+    @SqlBatch("update btc_notification_retries set state = 'REMOVE' where record_id = :record_id")
+    void markRemovalBatch(@Bind("record_id") List<Integer> recordIds);
+
+    @SqlBatch("delete from btc_notification_retries where record_id = :record_id")
+    void deleteBatch(@Bind("record_id") List<Integer> recordIds);
+}
@@ -17,105 +17,305 @@
 
 package org.killbill.billing.plugin.bitcoin.osgi.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-
-import javax.sql.DataSource;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
 public class PendingPaymentDao {
 
+    private static final int MAX_IN_CLAUSE_SIZE = 500;
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
     private final DBI dbi;
+    private final PendingPaymentSqlDao sqlDao;
     private final PendingPaymentMapper paymentMapper;
+    private final PendingPaymentIndex index;
+    private final List<PendingPaymentListener> listeners;
 
-    public PendingPaymentDao(final DataSource dataSource) {
-        this.dbi = new DBI(dataSource);
+    public PendingPaymentDao(final DBI dbi) {
+        this.dbi = dbi;
+        this.sqlDao = dbi.onDemand(PendingPaymentSqlDao.class);
         this.paymentMapper = new PendingPaymentMapper();
+        this.index = new PendingPaymentIndex();
+        this.listeners = new CopyOnWriteArrayList<PendingPaymentListener>();
+    }
+
+    public void addListener(final PendingPaymentListener listener) {
+        listeners.add(listener);
+    }
+
+    // Loads the btc_tx hashes of all pending payments so that lookups for unknown transactions no longer reach the database
+    public void loadIndex() {
+        index.load(streamPendingPayments(DEFAULT_PAGE_SIZE));
     }
 
+    // A payment already registered is left untouched
     public void insertPendingPayment(final PendingPayment payment) {
-        dbi.inTransaction(new TransactionCallback<Void>() {
+        final int nbInserted = sqlDao.insert(payment.getPaymentId().toString(),
+                                             payment.getAccountId().toString(),
+                                             payment.getTenantId() != null ? payment.getTenantId().toString() : null,
+                                             payment.getBtcTxHash(),
+                                             payment.getBtcContractId());
+        if (nbInserted > 0) {
+            index.add(payment.getPaymentId(), payment.getBtcTxHash());
+            notifyInserted(payment);
+        }
+    }
+
+    public void insertPendingPayments(final List<PendingPayment> payments) {
+        if (payments.isEmpty()) {
+            return;
+        }
+
+        final List<String> paymentIds = new ArrayList<String>(payments.size());
+        final List<String> accountIds = new ArrayList<String>(payments.size());
+        final List<String> tenantIds = new ArrayList<String>(payments.size());
+        final List<String> btcTxHashes = new ArrayList<String>(payments.size());
+        final List<String> btcContractIds = new ArrayList<String>(payments.size());
+        for (final PendingPayment payment : payments) {
+            paymentIds.add(payment.getPaymentId().toString());
+            accountIds.add(payment.getAccountId().toString());
+            tenantIds.add(payment.getTenantId() != null ? payment.getTenantId().toString() : null);
+            btcTxHashes.add(payment.getBtcTxHash());
+            btcContractIds.add(payment.getBtcContractId());
+        }
+        final int[] nbInserted = sqlDao.insertBatch(paymentIds, accountIds, tenantIds, btcTxHashes, btcContractIds);
+
+        for (int i = 0; i < payments.size(); i++) {
+            // 0 for payments already registered (drivers rewriting the batch may not report counts at all)
+            if (nbInserted[i] != 0) {
+                index.add(payments.get(i).getPaymentId(), payments.get(i).getBtcTxHash());
+                notifyInserted(payments.get(i));
+            }
+        }
+    }
+
+    public PendingPayment getByBtcTransactionId(final String btcTxHash) {
+        if (!index.mayContain(btcTxHash)) {
+            return null;
+        }
+        return sqlDao.getByBtcTransactionId(btcTxHash);
+    }
+
+    public List<PendingPayment> getByBtcTransactionIds(final Collection<String> btcTxHashes) {
+        final List<String> candidates = new ArrayList<String>(btcTxHashes.size());
+        for (final String btcTxHash : btcTxHashes) {
+            if (index.mayContain(btcTxHash)) {
+                candidates.add(btcTxHash);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return ImmutableList.<PendingPayment>of();
+        }
+
+        return dbi.inTransaction(new TransactionCallback<List<PendingPayment>>() {
+
             @Override
-            public Void inTransaction(Handle h, TransactionStatus status) throws Exception {
-                h.createStatement("insert into btc_pending_payments (payment_id, account_id, tenant_id, btc_tx, btc_contract_id) VALUES (:payment_id, :account_id, :tenant_id, :btc_tx, :btc_contract_id)")
-                 .bind("payment_id", payment.getPaymentId().toString())
-                 .bind("account_id", payment.getAccountId().toString())
-                 .bind("tenant_id", payment.getTenantId() != null ? payment.getTenantId().toString() : null)
-                 .bind("btc_tx", payment.getBtcTxHash())
-                 .bind("btc_contract_id", payment.getBtcContractId())
-                 .execute();
-                return null;
+            public List<PendingPayment> inTransaction(Handle h, TransactionStatus status) throws Exception {
+                return selectIn(h, "PendingPaymentDao.getByBtcTransactionIds", "btc_tx", candidates);
             }
         });
     }
 
-    public PendingPayment getByBtcTransactionId(final String btcTxHash) {
-        return dbi.inTransaction(new TransactionCallback<PendingPayment>() {
+    public List<PendingPayment> getByBtcContractId(final UUID btcContractId) {
+        return sqlDao.getUnpaidByBtcContractId(btcContractId.toString());
+    }
 
+    public void update(final Integer recordId, final String btcTxHash) {
+        final PendingPayment updated = dbi.inTransaction(new TransactionCallback<PendingPayment>() {
             @Override
             public PendingPayment inTransaction(Handle h, TransactionStatus status) throws Exception {
-                return h.createQuery("select * from btc_pending_payments where btc_tx = :btc_tx")
-                        .bind("btc_tx", btcTxHash)
-                        .map(paymentMapper)
-                        .first();
+                final PendingPaymentSqlDao transactional = h.attach(PendingPaymentSqlDao.class);
+                transactional.updateTxHash(recordId, btcTxHash);
+                return transactional.getByRecordId(recordId);
             }
         });
+        if (updated != null) {
+            index.add(updated.getPaymentId(), btcTxHash);
+            notifyUpdated(updated);
+        }
     }
 
-    public List<PendingPayment> getByBtcContractId(final UUID btcContractId) {
-        return dbi.inTransaction(new TransactionCallback<List<PendingPayment>>() {
+    public void updateTxHashes(final Map<Integer, String> btcTxHashByRecordId) {
+        if (btcTxHashByRecordId.isEmpty()) {
+            return;
+        }
 
+        final List<Integer> recordIds = ImmutableList.copyOf(btcTxHashByRecordId.keySet());
+        final List<String> btcTxHashes = new ArrayList<String>(recordIds.size());
+        for (final Integer recordId : recordIds) {
+            btcTxHashes.add(btcTxHashByRecordId.get(recordId));
+        }
+
+        final List<PendingPayment> updated = dbi.inTransaction(new TransactionCallback<List<PendingPayment>>() {
             @Override
             public List<PendingPayment> inTransaction(Handle h, TransactionStatus status) throws Exception {
-                return h.createQuery("select * from btc_pending_payments where btc_contract_id = :btc_contract_id and btc_tx is null order by record_id asc")
-                        .bind("btc_contract_id", btcContractId.toString())
-                        .map(paymentMapper)
-                        .list();
+                h.attach(PendingPaymentSqlDao.class).updateTxHashBatch(recordIds, btcTxHashes);
+                return selectIn(h, "PendingPaymentDao.updateTxHashes", "record_id", recordIds);
             }
         });
+        for (final PendingPayment payment : updated) {
+            index.add(payment.getPaymentId(), payment.getBtcTxHash());
+            notifyUpdated(payment);
+        }
     }
 
-    public void update(final Integer recordId, final String btcTxHash) {
-        dbi.inTransaction(new TransactionCallback<Void>() {
+    // Binds the address only if none was bound yet and returns the address the payment ends up with
+    public String bindReceiveAddress(final Integer recordId, final String btcReceiveAddress) {
+        final PendingPayment bound = dbi.inTransaction(new TransactionCallback<PendingPayment>() {
             @Override
-            public Void inTransaction(Handle h, TransactionStatus status) throws Exception {
-                h.createStatement("update btc_pending_payments set btc_tx = :btc_tx where record_id = :record_id")
-                 .bind("record_id", recordId)
-                 .bind("btc_tx", btcTxHash)
-                 .execute();
-                return null;
+            public PendingPayment inTransaction(Handle h, TransactionStatus status) throws Exception {
+                final PendingPaymentSqlDao transactional = h.attach(PendingPaymentSqlDao.class);
+                transactional.bindReceiveAddress(recordId, btcReceiveAddress);
+                return transactional.getByRecordId(recordId);
             }
         });
+        if (bound == null) {
+            return btcReceiveAddress;
+        }
+        notifyUpdated(bound);
+        return bound.getBtcReceiveAddress();
     }
 
+    // Materializes the whole table: use streamPendingPayments for sweeps
     public List<PendingPayment> getAllPendingPayments() {
-        return dbi.inTransaction(new TransactionCallback<List<PendingPayment>>() {
+        return sqlDao.getAll();
+    }
 
+    // All pending payments in record id order, read lazily pageSize rows at a time
+    public Iterable<PendingPayment> streamPendingPayments(final int pageSize) {
+        return stream(pageSize, new PageQuery() {
             @Override
-            public List<PendingPayment> inTransaction(Handle h, TransactionStatus status) throws Exception {
+            public List<PendingPayment> getPage(final Integer fromRecordId, final int limit) {
+                return sqlDao.getPage(fromRecordId, limit, limit);
+            }
+        });
+    }
 
-                return h.createQuery("select * from btc_pending_payments")
-                        .map(paymentMapper)
-                        .list();
+    public Iterable<PendingPayment> streamPendingPayments(final UUID tenantId, final int pageSize) {
+        return stream(pageSize, new PageQuery() {
+            @Override
+            public List<PendingPayment> getPage(final Integer fromRecordId, final int limit) {
+                return sqlDao.getPageForTenant(tenantId.toString(), fromRecordId, limit, limit);
             }
         });
     }
 
+    // Payments with a transaction and a record id strictly greater than fromRecordId, in record id order
+    public List<PendingPayment> getPaidPendingPaymentsPage(final Integer fromRecordId, final int limit) {
+        return sqlDao.getPaidPage(fromRecordId, limit);
+    }
+
     public void removePendingPayment(final UUID paymentId) {
-        dbi.inTransaction(new TransactionCallback<Void>() {
+        sqlDao.delete(paymentId.toString());
+        index.remove(paymentId);
+        notifyRemoved(paymentId);
+    }
+
+    public void removePendingPayments(final Collection<UUID> paymentIds) {
+        if (paymentIds.isEmpty()) {
+            return;
+        }
+
+        final List<String> paymentIdStrings = new ArrayList<String>(paymentIds.size());
+        for (final UUID paymentId : paymentIds) {
+            paymentIdStrings.add(paymentId.toString());
+        }
+        sqlDao.deleteBatch(paymentIdStrings);
+
+        for (final UUID paymentId : paymentIds) {
+            index.remove(paymentId);
+            notifyRemoved(paymentId);
+        }
+    }
+
+    private void notifyInserted(final PendingPayment payment) {
+        for (final PendingPaymentListener listener : listeners) {
+            listener.onInserted(payment);
+        }
+    }
+
+    private void notifyUpdated(final PendingPayment payment) {
+        for (final PendingPaymentListener listener : listeners) {
+            listener.onUpdated(payment);
+        }
+    }
+
+    private void notifyRemoved(final UUID paymentId) {
+        for (final PendingPaymentListener listener : listeners) {
+            listener.onRemoved(paymentId);
+        }
+    }
+
+    private interface PageQuery {
+
+        List<PendingPayment> getPage(Integer fromRecordId, int limit);
+    }
+
+    // Keyset pagination: rows inserted or removed during the iteration neither shift nor repeat pages
+    private Iterable<PendingPayment> stream(final int pageSize, final PageQuery pageQuery) {
+        return new Iterable<PendingPayment>() {
             @Override
-            public Void inTransaction(Handle h, TransactionStatus status) throws Exception {
-                h.createStatement("delete from btc_pending_payments where payment_id = :payment_id")
-                 .bind("payment_id", paymentId.toString())
-                 .execute();
-                return null;
+            public Iterator<PendingPayment> iterator() {
+                return new AbstractIterator<PendingPayment>() {
+
+                    private Iterator<PendingPayment> page = Iterators.emptyIterator();
+                    private Integer lastRecordId = 0;
+                    private boolean isLastPage = false;
+
+                    @Override
+                    protected PendingPayment computeNext() {
+                        if (!page.hasNext()) {
+                            if (isLastPage) {
+                                return endOfData();
+                            }
+                            final List<PendingPayment> nextPage = pageQuery.getPage(lastRecordId, pageSize);
+                            isLastPage = nextPage.size() < pageSize;
+                            page = nextPage.iterator();
+                            if (!page.hasNext()) {
+                                return endOfData();
+                            }
+                        }
+                        final PendingPayment next = page.next();
+                        lastRecordId = next.getRecordId();
+                        return next;
+                    }
+                };
             }
-        });
+        };
+    }
 
+    // IN lists are built dynamically, so they cannot be expressed on the SqlObject interface
+    private List<PendingPayment> selectIn(final Handle h, final String statementName, final String column, final List<?> values) {
+        final List<PendingPayment> result = new ArrayList<PendingPayment>(values.size());
+        for (final List<?> chunk : Lists.partition(values, MAX_IN_CLAUSE_SIZE)) {
+            final StringBuilder inClause = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                inClause.append(i == 0 ? "" : ", ").append(':').append(column).append('_').append(i);
+            }
+            final Query<Map<String, Object>> query = h.createQuery("select * from btc_pending_payments where " + column + " in (" + inClause + ")")
+                                                      .define(StatementTimingCollector.STATEMENT_NAME, statementName);
+            for (int i = 0; i < chunk.size(); i++) {
+                query.bind(column + "_" + i, chunk.get(i));
+            }
+            result.addAll(query.map(paymentMapper).list());
+        }
+        return result;
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+
+/**
+ * In-memory view of the btc_tx hashes currently present in btc_pending_payments.
+ * <p/>
+ * Until the index has been loaded, every lookup is reported as a possible hit so callers fall through to the database.
+ * This assumes a single plugin instance writes to the table; a stale entry only costs an extra query.
+ */
+class PendingPaymentIndex {
+
+    private final ConcurrentMap<String, UUID> paymentIdByTxHash;
+    private final ConcurrentMap<UUID, String> txHashByPaymentId;
+
+    private volatile boolean isLoaded;
+
+    PendingPaymentIndex() {
+        this.paymentIdByTxHash = new ConcurrentHashMap<String, UUID>();
+        this.txHashByPaymentId = new ConcurrentHashMap<UUID, String>();
+        this.isLoaded = false;
+    }
+
+    public void load(final Iterable<PendingPayment> pendingPayments) {
+        for (final PendingPayment pendingPayment : pendingPayments) {
+            add(pendingPayment.getPaymentId(), pendingPayment.getBtcTxHash());
+        }
+        isLoaded = true;
+    }
+
+    public boolean isLoaded() {
+        return isLoaded;
+    }
+
+    public boolean mayContain(final String btcTxHash) {
+        return !isLoaded || (btcTxHash != null && paymentIdByTxHash.containsKey(btcTxHash));
+    }
+
+    public void add(final UUID paymentId, final String btcTxHash) {
+        if (btcTxHash == null) {
+            return;
+        }
+        final String previousTxHash = txHashByPaymentId.put(paymentId, btcTxHash);
+        if (previousTxHash != null && !previousTxHash.equals(btcTxHash)) {
+            paymentIdByTxHash.remove(previousTxHash, paymentId);
+        }
+        paymentIdByTxHash.put(btcTxHash, paymentId);
+    }
+
+    public void remove(final UUID paymentId) {
+        final String btcTxHash = txHashByPaymentId.remove(paymentId);
+        if (btcTxHash != null) {
+            paymentIdByTxHash.remove(btcTxHash, paymentId);
+        }
+    }
+
+    public int size() {
+        return paymentIdByTxHash.size();
+    }
+}
@@ -35,6 +35,7 @@ public class PendingPaymentMapper implements ResultSetMapper<PendingPayment> {
         final UUID tenantId = r.getString("tenant_id") != null ? UUID.fromString(r.getString("tenant_id")) : null;
         final String btcTxHash = r.getString("btc_tx");
         final String btcContractId = r.getString("btc_contract_id");
-        return new PendingPayment(recordId, paymentId, accountId, tenantId, btcTxHash, btcContractId);
+        final String btcReceiveAddress = r.getString("btc_receive_address");
+        return new PendingPayment(recordId, paymentId, accountId, tenantId, btcTxHash, btcContractId, btcReceiveAddress);
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.List;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.FetchSize;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+
+@RegisterMapper(PendingPaymentMapper.class)
+public interface PendingPaymentSqlDao {
+
+    // Idempotent on payment_id only: registering the same payment twice (e.g. bus redelivery) inserts no row, while
+    // another payment with the same btc_tx still fails on the unique index
+    static final String INSERT = "insert into btc_pending_payments (payment_id, account_id, tenant_id, btc_tx, btc_contract_id)" +
+                                 " select :payment_id, :account_id, :tenant_id, :btc_tx, :btc_contract_id from dual" +
+                                 " where not exists (select 1 from btc_pending_payments where payment_id = :payment_id)";
+    static final String UPDATE_TX_HASH = "update btc_pending_payments set btc_tx = :btc_tx where record_id = :record_id";
+    static final String DELETE = "delete from btc_pending_payments where payment_id = :payment_id";
+
+    @SqlUpdate(INSERT)
+    int insert(@Bind("payment_id") String paymentId,
+                @Bind("account_id") String accountId,
+                @Bind("tenant_id") String tenantId,
+                @Bind("btc_tx") String btcTxHash,
+                @Bind("btc_contract_id") String btcContractId);
+
+    @SqlBatch(INSERT)
+    int[] insertBatch(@Bind("payment_id") List<String> paymentIds,
+                     @Bind("account_id") List<String> accountIds,
+                     @Bind("tenant_id") List<String> tenantIds,
+                     @Bind("btc_tx") List<String> btcTxHashes,
+                     @Bind("btc_contract_id") List<String> btcContractIds);
+
+    @SqlQuery("select * from btc_pending_payments where record_id = :record_id")
+    PendingPayment getByRecordId(@Bind("record_id") Integer recordId);
+
+    @SqlQuery("select * from btc_pending_payments where btc_tx = :btc_tx")
+    PendingPayment getByBtcTransactionId(@Bind("btc_tx") String btcTxHash);
+
+    @SqlQuery("select * from btc_pending_payments where btc_contract_id = :btc_contract_id and btc_tx is null order by record_id asc")
+    List<PendingPayment> getUnpaidByBtcContractId(@Bind("btc_contract_id") String btcContractId);
+
+    @SqlQuery("select * from btc_pending_payments")
+    List<PendingPayment> getAll();
+
+    @SqlQuery("select * from btc_pending_payments where record_id > :from_record_id order by record_id asc limit :limit")
+    List<PendingPayment> getPage(@Bind("from_record_id") Integer fromRecordId,
+                                 @Bind("limit") int limit,
+                                 @FetchSize int fetchSize);
+
+    @SqlQuery("select * from btc_pending_payments where tenant_id = :tenant_id and record_id > :from_record_id order by record_id asc limit :limit")
+    List<PendingPayment> getPageForTenant(@Bind("tenant_id") String tenantId,
+                                          @Bind("from_record_id") Integer fromRecordId,
+                                          @Bind("limit") int limit,
+                                          @FetchSize int fetchSize);
+
+    // Keyset page of the payments with a transaction, skipping the ones already waiting for a notification retry
+    @SqlQuery("select p.* from btc_pending_payments p" +
+              " where p.record_id > :from_record_id and p.btc_tx is not null" +
+              " and not exists (select 1 from btc_notification_retries r where r.payment_id = p.payment_id)" +
+              " order by p.record_id asc limit :limit")
+    List<PendingPayment> getPaidPage(@Bind("from_record_id") Integer fromRecordId,
+                                     @Bind("limit") int limit);
+
+    @SqlUpdate(UPDATE_TX_HASH)
+    void updateTxHash(@Bind("record_id") Integer recordId,
+                      @Bind("btc_tx") String btcTxHash);
+
+    @SqlBatch(UPDATE_TX_HASH)
+    void updateTxHashBatch(@Bind("record_id") List<Integer> recordIds,
+                           @Bind("btc_tx") List<String> btcTxHashes);
+
+    @SqlUpdate("update btc_pending_payments set btc_receive_address = :btc_receive_address where record_id = :record_id and btc_receive_address is null")
+    int bindReceiveAddress(@Bind("record_id") Integer recordId,
+                           @Bind("btc_receive_address") String btcReceiveAddress);
+
+    @SqlUpdate(DELETE)
+    void delete(@Bind("payment_id") String paymentId);
+
+    @SqlBatch(DELETE)
+    void deleteBatch(@Bind("payment_id") List<String> paymentIds);
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Coalesces pending payment inserts into batches, written when the buffer reaches its maximum size or when the
+ * flush interval has elapsed since the first buffered payment, whichever comes first.
+ * <p/>
+ * Each payment gets a future completed once its row is written (or failed), so that callers can wait for it and let
+ * the error propagate instead of losing the payment.
+ * <p/>
+ * Callers waiting for their payment do not wait for the flush interval: the first one writes right away, and
+ * payments added while that write is in progress are written together by the same caller once it completes.
+ */
+public class PendingPaymentWriteBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(PendingPaymentWriteBuffer.class);
+
+    private final PendingPaymentDao dao;
+    private final int maxBatchSize;
+    private final long flushIntervalMs;
+    private final ScheduledExecutorService scheduler;
+
+    private List<BufferedPayment> buffer;
+    private ScheduledFuture<?> scheduledFlush;
+    // Whether a waiting caller is writing the buffer
+    private boolean isWriting;
+    private boolean isStopped;
+
+    public PendingPaymentWriteBuffer(final PendingPaymentDao dao, final int maxBatchSize, final long flushIntervalMs) {
+        this.dao = dao;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("bitcoin-pending-payment-writer-%d").setDaemon(true).build());
+        this.buffer = new ArrayList<BufferedPayment>(maxBatchSize);
+        this.isWriting = false;
+        this.isStopped = false;
+    }
+
+    public ListenableFuture<Void> add(final PendingPayment payment) {
+        final BufferedPayment buffered = new BufferedPayment(payment);
+        final List<BufferedPayment> toWrite;
+        synchronized (this) {
+            buffer.add(buffered);
+            if (buffer.size() < maxBatchSize && !isStopped) {
+                if (scheduledFlush == null) {
+                    scheduledFlush = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, flushIntervalMs, TimeUnit.MILLISECONDS);
+                }
+                return buffered.future;
+            }
+            toWrite = drain();
+        }
+        write(toWrite);
+        return buffered.future;
+    }
+
+    // Blocks until the payment is written, rethrowing the insert failure
+    public void addAndWait(final PendingPayment payment) {
+        final BufferedPayment buffered = new BufferedPayment(payment);
+        final boolean isWriter;
+        synchronized (this) {
+            buffer.add(buffered);
+            isWriter = !isWriting;
+            isWriting = true;
+        }
+        if (isWriter) {
+            writeUntilEmpty();
+        }
+
+        try {
+            buffered.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while registering pending payment " + payment.getPaymentId(), e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new IllegalStateException("Failed to register pending payment " + payment.getPaymentId(), e.getCause());
+        }
+    }
+
+    // Payments added by other callers meanwhile are waiting for this thread, so keep going until none is left
+    private void writeUntilEmpty() {
+        boolean isDone = false;
+        try {
+            while (!isDone) {
+                final List<BufferedPayment> toWrite;
+                synchronized (this) {
+                    toWrite = drain();
+                    if (toWrite.isEmpty()) {
+                        isWriting = false;
+                        isDone = true;
+                    }
+                }
+                write(toWrite);
+            }
+        } finally {
+            if (!isDone) {
+                synchronized (this) {
+                    isWriting = false;
+                }
+            }
+        }
+    }
+
+    public void flush() {
+        final List<BufferedPayment> toWrite;
+        synchronized (this) {
+            toWrite = drain();
+        }
+        write(toWrite);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            // Payments added from now on are written by the caller
+            isStopped = true;
+        }
+        scheduler.shutdown();
+        flush();
+    }
+
+    @VisibleForTesting
+    synchronized int getNbBuffered() {
+        return buffer.size();
+    }
+
+    private List<BufferedPayment> drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        final List<BufferedPayment> result = buffer;
+        buffer = new ArrayList<BufferedPayment>(maxBatchSize);
+        return result;
+    }
+
+    private void write(final List<BufferedPayment> buffered) {
+        if (buffered.isEmpty()) {
+            return;
+        }
+
+        final List<PendingPayment> payments = new ArrayList<PendingPayment>(buffered.size());
+        for (final BufferedPayment cur : buffered) {
+            payments.add(cur.payment);
+        }
+        try {
+            dao.insertPendingPayments(payments);
+            for (final BufferedPayment cur : buffered) {
+                cur.future.set(null);
+            }
+        } catch (RuntimeException e) {
+            // One bad row fails the whole batch: fall back to row by row so that the others still get registered
+            log.warn("Failed to insert batch of " + payments.size() + " pending payments, retrying one by one", e);
+            for (final BufferedPayment cur : buffered) {
+                try {
+                    dao.insertPendingPayment(cur.payment);
+                    cur.future.set(null);
+                } catch (RuntimeException e2) {
+                    log.warn("Failed to insert pending payment " + cur.payment, e2);
+                    cur.future.setException(e2);
+                }
+            }
+        }
+    }
+
+    private static final class BufferedPayment {
+
+        private final PendingPayment payment;
+        private final SettableFuture<Void> future;
+
+        private BufferedPayment(final PendingPayment payment) {
+            this.payment = payment;
+            this.future = SettableFuture.<Void>create();
+        }
+    }
+}
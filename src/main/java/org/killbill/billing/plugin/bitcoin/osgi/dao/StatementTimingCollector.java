@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+
+/**
+ * Latency histograms of the statements run through the plugin DBI, keyed by SqlObject method or,
+ * for statements built on a handle, by the {@link #STATEMENT_NAME} attribute (raw SQL otherwise).
+ */
+public class StatementTimingCollector implements TimingCollector {
+
+    public static final String STATEMENT_NAME = "statement_name";
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms;
+
+    public StatementTimingCollector() {
+        this.histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+
+    @Override
+    public void collect(final long elapsedTime, final StatementContext ctx) {
+        final String name = getStatementName(ctx);
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(elapsedTime);
+    }
+
+    public SortedMap<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (final Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            result.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return result.toString();
+    }
+
+    private String getStatementName(final StatementContext ctx) {
+        final Method sqlObjectMethod = ctx.getSqlObjectMethod();
+        if (sqlObjectMethod != null) {
+            return sqlObjectMethod.getDeclaringClass().getSimpleName() + "." + sqlObjectMethod.getName();
+        }
+        final Object statementName = ctx.getAttribute(STATEMENT_NAME);
+        return statementName != null ? statementName.toString() : ctx.getRawSql();
+    }
+
+    /**
+     * Power-of-two buckets in microseconds, from 1us up to about 17 minutes.
+     */
+    public static class LatencyHistogram {
+
+        private static final int NB_BUCKETS = 31;
+
+        private final AtomicLongArray buckets;
+        private final AtomicLong count;
+        private final AtomicLong totalNanos;
+        private final AtomicLong maxNanos;
+
+        public LatencyHistogram() {
+            this.buckets = new AtomicLongArray(NB_BUCKETS);
+            this.count = new AtomicLong();
+            this.totalNanos = new AtomicLong();
+            this.maxNanos = new AtomicLong();
+        }
+
+        public void record(final long elapsedNanos) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+            final int bucket = Math.min(NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(elapsedNanos);
+
+            long curMax = maxNanos.get();
+            while (elapsedNanos > curMax && !maxNanos.compareAndSet(curMax, elapsedNanos)) {
+                curMax = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMeanMicros() {
+            final long nb = count.get();
+            return nb == 0 ? 0 : (double) TimeUnit.NANOSECONDS.toMicros(totalNanos.get()) / nb;
+        }
+
+        public long getMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+        }
+
+        // Upper bound of the bucket containing the given percentile
+        public long getPercentileMicros(final double percentile) {
+            final long nb = count.get();
+            if (nb == 0) {
+                return 0;
+            }
+            final long target = (long) Math.ceil(nb * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (NB_BUCKETS - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() +
+                   " mean=" + String.format("%.1f", getMeanMicros()) + "us" +
+                   " p50<=" + getPercentileMicros(50) + "us" +
+                   " p99<=" + getPercentileMicros(99) + "us" +
+                   " max=" + getMaxMicros() + "us";
+        }
+    }
+}
@@ -17,33 +17,69 @@
 
 package org.killbill.billing.plugin.bitcoin.osgi.dao;
 
-import javax.sql.DataSource;
+import java.util.List;
 
 import org.killbill.billing.plugin.bitcoin.osgi.TransactionLog;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.Update;
+
+import com.google.common.collect.Lists;
 
 public class TransactionLogDao {
 
+    private static final int MAX_ROWS_PER_INSERT = 500;
+
     private final DBI dbi;
+    private final TransactionLogSqlDao sqlDao;
 
-    public TransactionLogDao(final DataSource dataSource) {
-        this.dbi = new DBI(dataSource);
+    public TransactionLogDao(final DBI dbi) {
+        this.dbi = dbi;
+        this.sqlDao = dbi.onDemand(TransactionLogSqlDao.class);
     }
 
     public void insertTransactionLog(final TransactionLog log) {
+        sqlDao.insert(log.getAccountId().toString(),
+                      log.getSubscriptionId() != null ? log.getSubscriptionId().toString() : null,
+                      log.getContractId().toString(),
+                      log.getCall(),
+                      log.getCreatedDate().toDate());
+    }
+
+    // Multi-row insert: one statement per MAX_ROWS_PER_INSERT logs
+    public void insertTransactionLogs(final List<TransactionLog> logs) {
+        if (logs.isEmpty()) {
+            return;
+        }
+
         dbi.inTransaction(new TransactionCallback<Void>() {
             @Override
             public Void inTransaction(Handle h, TransactionStatus status) throws Exception {
-                h.createStatement("insert into transaction_logs (account_id, subscription_id, contract_id, api_call, created_date) VALUES (:account_id, :subscription_id, :contract_id, :api_call, :created_date)")
-                 .bind("account_id", log.getAccountId().toString())
-                 .bind("subscription_id", log.getSubscriptionId() != null ? log.getSubscriptionId().toString() : null)
-                 .bind("contract_id", log.getContractId().toString())
-                 .bind("api_call", log.getCall())
-                 .bind("created_date", log.getCreatedDate().toDate())
-                 .execute();
+                for (final List<TransactionLog> chunk : Lists.partition(logs, MAX_ROWS_PER_INSERT)) {
+                    final StringBuilder values = new StringBuilder();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        values.append(i == 0 ? "" : ", ")
+                              .append("(:account_id_").append(i)
+                              .append(", :subscription_id_").append(i)
+                              .append(", :contract_id_").append(i)
+                              .append(", :api_call_").append(i)
+                              .append(", :created_date_").append(i)
+                              .append(')');
+                    }
+                    final Update update = h.createStatement("insert into transaction_logs (account_id, subscription_id, contract_id, api_call, created_date) VALUES " + values)
+                                           .define(StatementTimingCollector.STATEMENT_NAME, "TransactionLogDao.insertTransactionLogs");
+                    for (int i = 0; i < chunk.size(); i++) {
+                        final TransactionLog log = chunk.get(i);
+                        update.bind("account_id_" + i, log.getAccountId().toString())
+                              .bind("subscription_id_" + i, log.getSubscriptionId() != null ? log.getSubscriptionId().toString() : null)
+                              .bind("contract_id_" + i, log.getContractId().toString())
+                              .bind("api_call_" + i, log.getCall())
+                              .bind("created_date_" + i, log.getCreatedDate().toDate());
+                    }
+                    update.execute();
+                }
                 return null;
             }
         });
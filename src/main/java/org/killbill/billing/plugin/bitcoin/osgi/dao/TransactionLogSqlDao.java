@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.Date;
+
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+
+public interface TransactionLogSqlDao {
+
+    @SqlUpdate("insert into transaction_logs (account_id, subscription_id, contract_id, api_call, created_date) VALUES (:account_id, :subscription_id, :contract_id, :api_call, :created_date)")
+    void insert(@Bind("account_id") String accountId,
+                @Bind("subscription_id") String subscriptionId,
+                @Bind("contract_id") String contractId,
+                @Bind("api_call") String apiCall,
+                @Bind("created_date") Date createdDate);
+}
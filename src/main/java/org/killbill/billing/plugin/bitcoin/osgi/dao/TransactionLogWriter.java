@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.bitcoin.osgi.TransactionLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Append-only writer for the transaction_logs audit table.
+ * <p/>
+ * In SYNC mode each log is inserted by the caller. Otherwise logs go through a bounded buffer drained by a
+ * background thread using multi-row inserts: as soon as they are available (ASYNC) or once per flush interval
+ * (INTERVAL). When the buffer is full the caller inserts its own log, so entries are never dropped.
+ * <p/>
+ * A log inserted by the caller (SYNC mode, full buffer or stopped writer) fails the call when it cannot be written;
+ * only the background thread counts and logs its failures.
+ */
+public class TransactionLogWriter {
+
+    public enum Mode {
+        ASYNC,
+        INTERVAL,
+        SYNC
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionLogWriter.class);
+
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final long POLL_TIMEOUT_MS = 1000;
+
+    private final TransactionLogDao dao;
+    private final Mode mode;
+    private final long flushIntervalMs;
+    private final BlockingQueue<TransactionLog> buffer;
+    private final Thread flusher;
+
+    private final AtomicLong appended;
+    private final AtomicLong written;
+    private final AtomicLong overflows;
+    private final AtomicLong failed;
+
+    private volatile boolean isRunning;
+
+    public TransactionLogWriter(final TransactionLogDao dao, final Mode mode, final int bufferSize, final long flushIntervalMs) {
+        this.dao = dao;
+        this.mode = mode;
+        this.flushIntervalMs = flushIntervalMs;
+        this.buffer = new ArrayBlockingQueue<TransactionLog>(bufferSize);
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "bitcoin-transaction-log-writer");
+        this.flusher.setDaemon(true);
+        this.appended = new AtomicLong();
+        this.written = new AtomicLong();
+        this.overflows = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.isRunning = false;
+    }
+
+    public void start() {
+        if (mode != Mode.SYNC) {
+            isRunning = true;
+            flusher.start();
+        }
+    }
+
+    public void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything appended while stopping
+        writeAll();
+    }
+
+    public void append(final TransactionLog transactionLog) {
+        appended.incrementAndGet();
+        if (!isRunning || !buffer.offer(transactionLog)) {
+            if (isRunning) {
+                overflows.incrementAndGet();
+            }
+            try {
+                write(ImmutableList.<TransactionLog>of(transactionLog));
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    private void flushLoop() {
+        log.info("Starting transaction log writer in " + mode + " mode");
+        while (isRunning) {
+            try {
+                if (mode == Mode.INTERVAL) {
+                    Thread.sleep(flushIntervalMs);
+                    writeAll();
+                } else {
+                    final TransactionLog first = buffer.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        final List<TransactionLog> batch = new ArrayList<TransactionLog>(MAX_BATCH_SIZE);
+                        batch.add(first);
+                        buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+                        writeInBackground(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop() was called, remaining logs are written below
+                break;
+            }
+        }
+        writeAll();
+        log.info("Stopped transaction log writer: " + toString());
+    }
+
+    private void writeAll() {
+        final List<TransactionLog> batch = new ArrayList<TransactionLog>(MAX_BATCH_SIZE);
+        while (buffer.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            writeInBackground(batch);
+            batch.clear();
+        }
+    }
+
+    // No caller to report the failure to
+    private void writeInBackground(final List<TransactionLog> batch) {
+        try {
+            write(batch);
+        } catch (RuntimeException e) {
+            failed.addAndGet(batch.size());
+            log.warn("Failed to write " + batch.size() + " transaction logs", e);
+        }
+    }
+
+    private void write(final List<TransactionLog> batch) {
+        dao.insertTransactionLogs(batch);
+        written.addAndGet(batch.size());
+    }
+
+    public int getBufferDepth() {
+        return buffer.size();
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionLogWriter{" +
+               "mode=" + mode +
+               ", bufferDepth=" + getBufferDepth() +
+               ", appended=" + appended +
+               ", written=" + written +
+               ", overflows=" + overflows +
+               ", failed=" + failed +
+               '}';
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.http;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentListener;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+/**
+ * Serialized PaymentRequest returned by the last poll of each contract, dropped as soon as one of the contract
+ * pending payments is inserted, updated or removed.
+ * <p/>
+ * Entries built while an invalidation happened are not stored, since they may have been computed from stale rows.
+ */
+public class PaymentRequestCache implements PendingPaymentListener {
+
+    private final Cache<String, CachedPaymentRequest> cache;
+    // Bumped on every invalidation
+    private final AtomicLong generation;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong notModified;
+
+    public PaymentRequestCache(final long maxSize, final long ttlMs) {
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maxSize)
+                                 .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                                 .build();
+        this.generation = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.notModified = new AtomicLong();
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public CachedPaymentRequest get(final String contractId, final String variant) {
+        final CachedPaymentRequest cached = cache.getIfPresent(contractId);
+        if (cached == null || !cached.getVariant().equals(variant)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached;
+    }
+
+    // Whether the entry is still cached, without counting as a hit or a miss
+    public boolean isCurrent(final String contractId, final CachedPaymentRequest paymentRequest) {
+        return cache.getIfPresent(contractId) == paymentRequest;
+    }
+
+    public CachedPaymentRequest put(final String contractId, final String variant, final UUID paymentId, final byte[] body, final long generationAtBuild) {
+        final CachedPaymentRequest cached = new CachedPaymentRequest(variant, paymentId, body);
+        if (generation.get() == generationAtBuild) {
+            cache.put(contractId, cached);
+            // An invalidation may have slipped in between the check and the put
+            if (generation.get() != generationAtBuild) {
+                cache.invalidate(contractId);
+            }
+        }
+        return cached;
+    }
+
+    public void recordNotModified() {
+        notModified.incrementAndGet();
+    }
+
+    @Override
+    public void onInserted(final PendingPayment payment) {
+        invalidate(payment);
+    }
+
+    @Override
+    public void onUpdated(final PendingPayment payment) {
+        invalidate(payment);
+    }
+
+    @Override
+    public void onRemoved(final UUID paymentId) {
+        generation.incrementAndGet();
+        final Iterator<CachedPaymentRequest> iterator = cache.asMap().values().iterator();
+        while (iterator.hasNext()) {
+            if (paymentId.equals(iterator.next().getPaymentId())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void invalidate(final PendingPayment payment) {
+        generation.incrementAndGet();
+        if (payment.getBtcContractId() != null) {
+            cache.invalidate(payment.getBtcContractId());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentRequestCache{" +
+               "size=" + cache.size() +
+               ", hits=" + hits +
+               ", misses=" + misses +
+               ", notModified=" + notModified +
+               '}';
+    }
+
+    public static class CachedPaymentRequest {
+
+        private final String variant;
+        private final UUID paymentId;
+        private final byte[] body;
+        private final String etag;
+
+        private CachedPaymentRequest(final String variant, final UUID paymentId, final byte[] body) {
+            this.variant = variant;
+            this.paymentId = paymentId;
+            this.body = body;
+            this.etag = '"' + Hashing.sha1().hashBytes(body).toString() + '"';
+        }
+
+        public String getVariant() {
+            return variant;
+        }
+
+        public UUID getPaymentId() {
+            return paymentId;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        // Whether an If-None-Match header matches this entry, in which case the answer is a 304
+        public boolean isNotModified(@Nullable final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (final String candidate : ifNoneMatch.split(",")) {
+                final String trimmed = candidate.trim();
+                if (trimmed.equals("*") || trimmed.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
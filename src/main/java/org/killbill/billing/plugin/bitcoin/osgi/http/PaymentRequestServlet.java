@@ -20,10 +20,12 @@ package org.killbill.billing.plugin.bitcoin.osgi.http;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 import javax.servlet.ServletException;
@@ -57,16 +59,22 @@ import org.killbill.billing.entitlement.api.SubscriptionEvent;
 import org.killbill.billing.entitlement.api.SubscriptionEventType;
 import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.plugin.bitcoin.osgi.AccountPartitionedExecutor;
 import org.killbill.billing.plugin.bitcoin.osgi.BitcoinActivator;
 import org.killbill.billing.plugin.bitcoin.osgi.BitcoinCallContext;
 import org.killbill.billing.plugin.bitcoin.osgi.BitcoinManager;
 import org.killbill.billing.plugin.bitcoin.osgi.BitcoinSubscriptionId;
 import org.killbill.billing.plugin.bitcoin.osgi.Contract;
+import org.killbill.billing.plugin.bitcoin.osgi.Forward;
+import org.killbill.billing.plugin.bitcoin.osgi.NotificationRetryQueue;
 import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
 import org.killbill.billing.plugin.bitcoin.osgi.TransactionLog;
 import org.killbill.billing.plugin.bitcoin.osgi.dao.ContractDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.ForwardDao;
 import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
-import org.killbill.billing.plugin.bitcoin.osgi.dao.TransactionLogDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.StatementTimingCollector;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.TransactionLogWriter;
+import org.killbill.billing.plugin.bitcoin.osgi.http.PaymentRequestCache.CachedPaymentRequest;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.util.api.CustomFieldApiException;
 import org.killbill.billing.util.api.TagApiException;
@@ -74,9 +82,8 @@ import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
 
-import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.Transaction;
-import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.core.TransactionOutput;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -96,6 +103,16 @@ public class PaymentRequestServlet extends HttpServlet {
     private final static String BTC_SUBSCRIPTION_POLLING = "/polling";
     private final static String BTC_SUBSCRIPTION_PAYMENT = "/payment";
     private final static String BTC_WALLET = "/wallet";
+    private final static String BTC_METRICS = "/metrics";
+    private final static String BTC_READY = "/ready";
+    private final static String BTC_FORWARDS = "/forwards";
+
+    private static final int DEFAULT_FORWARDS_LIMIT = 100;
+    private static final int MAX_FORWARDS_LIMIT = 1000;
+
+    // Used when the sync progress gives no estimate
+    private static final long DEFAULT_RETRY_AFTER_SEC = 30;
+    private static final long MAX_RETRY_AFTER_SEC = 300;
 
     private final static String BTC_SUBSCRIPTION_CONTRACT_PATH = BTC_SERVLET_BASE_PATH + BTC_SUBSCRIPTION_CONTRACT;
     private final static String BTC_SUBSCRIPTION_POLLING_PATH = BTC_SERVLET_BASE_PATH + BTC_SUBSCRIPTION_POLLING;
@@ -106,19 +123,37 @@ public class PaymentRequestServlet extends HttpServlet {
     private static final String HDR_REASON = "X-Killbill-Reason";
     private static final String HDR_COMMENT = "X-Killbill-Comment";
 
+    private static final String LONG_POLL_RESUMED = "org.killbill.billing.plugin.bitcoin.longPollResumed";
+
 
     private final OSGIKillbillAPI killbillAPI;
     private final ContractDao contractDao;
     private final PendingPaymentDao paymentDao;
     private final BitcoinManager bitcoinManager;
-    private final TransactionLogDao transactionLogDao;
-
-    public PaymentRequestServlet(OSGIKillbillAPI killbillAPI, ContractDao contractDao, PendingPaymentDao paymentDao, TransactionLogDao transactionLogDao, BitcoinManager bitcoinManager) {
+    private final TransactionLogWriter transactionLogWriter;
+    private final StatementTimingCollector statementTimings;
+    private final PaymentRequestCache paymentRequestCache;
+    private final PollingWaiters pollingWaiters;
+    private final long maxLongPollWaitMs;
+    private final AccountPartitionedExecutor eventExecutor;
+    private final NotificationRetryQueue retryQueue;
+    private final ForwardDao forwardDao;
+
+    public PaymentRequestServlet(OSGIKillbillAPI killbillAPI, ContractDao contractDao, PendingPaymentDao paymentDao, TransactionLogWriter transactionLogWriter, BitcoinManager bitcoinManager,
+                                 StatementTimingCollector statementTimings, PaymentRequestCache paymentRequestCache, PollingWaiters pollingWaiters, long maxLongPollWaitMs,
+                                 AccountPartitionedExecutor eventExecutor, NotificationRetryQueue retryQueue, ForwardDao forwardDao) {
         this.killbillAPI = killbillAPI;
         this.contractDao = contractDao;
         this.paymentDao = paymentDao;
-        this.transactionLogDao = transactionLogDao;
+        this.transactionLogWriter = transactionLogWriter;
         this.bitcoinManager = bitcoinManager;
+        this.statementTimings = statementTimings;
+        this.paymentRequestCache = paymentRequestCache;
+        this.pollingWaiters = pollingWaiters;
+        this.maxLongPollWaitMs = maxLongPollWaitMs;
+        this.eventExecutor = eventExecutor;
+        this.retryQueue = retryQueue;
+        this.forwardDao = forwardDao;
     }
 
     @Override
@@ -129,9 +164,19 @@ public class PaymentRequestServlet extends HttpServlet {
             if (pathInfo.equals(BTC_SUBSCRIPTION_CONTRACT)) {
                 createContract(req, resp);
             } else if (pathInfo.equals(BTC_SUBSCRIPTION_POLLING)) {
-                pollForPayment(req, resp);
+                if (checkWalletReady(resp)) {
+                    pollForPayment(req, resp);
+                }
             } else if (pathInfo.equals(BTC_WALLET)) {
-                dumpWallet(req, resp);
+                if (checkWalletReady(resp)) {
+                    dumpWallet(req, resp);
+                }
+            } else if (pathInfo.equals(BTC_READY)) {
+                dumpReadiness(req, resp);
+            } else if (pathInfo.equals(BTC_METRICS)) {
+                dumpMetrics(req, resp);
+            } else if (pathInfo.equals(BTC_FORWARDS)) {
+                dumpForwards(req, resp);
             } else {
                 resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
             }
@@ -145,12 +190,78 @@ public class PaymentRequestServlet extends HttpServlet {
         resp.setStatus(HttpServletResponse.SC_OK);
     }
 
+    // Wallet dependent routes are unavailable until the wallet kit has synced
+    private boolean checkWalletReady(final HttpServletResponse resp) {
+        if (bitcoinManager.isReady()) {
+            return true;
+        }
+        final long estimatedSec = bitcoinManager.getSyncProgress().getEstimatedSecondsRemaining();
+        final long retryAfterSec = estimatedSec > 0 ? Math.min(estimatedSec, MAX_RETRY_AFTER_SEC) : DEFAULT_RETRY_AFTER_SEC;
+        resp.setHeader("Retry-After", String.valueOf(retryAfterSec));
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return false;
+    }
+
+    private void dumpReadiness(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final boolean isReady = checkWalletReady(resp);
+        resp.setContentType("text/plain");
+        resp.getOutputStream().write((bitcoinManager.getState() + " " + bitcoinManager.getSyncProgress() + "\n").getBytes("UTF-8"));
+        if (isReady) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+    }
+
+    private void dumpMetrics(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final StringBuilder metrics = new StringBuilder();
+        metrics.append(bitcoinManager.getState()).append(' ').append(bitcoinManager.getSyncProgress()).append('\n');
+        metrics.append(eventExecutor).append('\n');
+        metrics.append(bitcoinManager.getConfirmationProcessor()).append('\n');
+        metrics.append(retryQueue).append('\n');
+        metrics.append(bitcoinManager.getReconciler()).append('\n');
+        metrics.append(bitcoinManager.getPeerGroupMonitor()).append('\n');
+        metrics.append(transactionLogWriter).append('\n');
+        metrics.append(bitcoinManager.getKeyPool()).append('\n');
+        metrics.append(bitcoinManager.getOwnedScripts()).append('\n');
+        metrics.append(bitcoinManager.getForwarder()).append('\n');
+        metrics.append(paymentRequestCache).append('\n');
+        metrics.append(pollingWaiters).append('\n');
+        metrics.append(statementTimings);
+        resp.setContentType("text/plain");
+        resp.getOutputStream().write(metrics.toString().getBytes("UTF-8"));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    // Sweeps to the bank created in [from, to), most recent first
+    private void dumpForwards(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final DateTime to;
+        final DateTime from;
+        final int limit;
+        try {
+            to = req.getParameter("to") != null ? new DateTime(req.getParameter("to"), DateTimeZone.UTC) : new DateTime(DateTimeZone.UTC);
+            from = req.getParameter("from") != null ? new DateTime(req.getParameter("from"), DateTimeZone.UTC) : to.minusDays(1);
+            limit = req.getParameter("limit") != null ? Math.min(Integer.valueOf(req.getParameter("limit")), MAX_FORWARDS_LIMIT) : DEFAULT_FORWARDS_LIMIT;
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        final StringBuilder forwards = new StringBuilder();
+        for (final Forward forward : forwardDao.getForwards(from, to, limit)) {
+            forwards.append(forward).append('\n');
+        }
+        resp.setContentType("text/plain");
+        resp.getOutputStream().write(forwards.toString().getBytes("UTF-8"));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         try {
             final String pathInfo = req.getPathInfo();
             if (pathInfo.equals(BTC_SUBSCRIPTION_PAYMENT)) {
-                createPayment(req, resp);
+                if (checkWalletReady(resp)) {
+                    createPayment(req, resp);
+                }
             } else {
                 resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
             }
@@ -179,10 +290,14 @@ public class PaymentRequestServlet extends HttpServlet {
             return;
         }
 
-        transactionLogDao.insertTransactionLog(new TransactionLog(new DateTime(DateTimeZone.UTC), "createPayment", pendingPayment.getAccountId(), null, contractId));
+        transactionLogWriter.append(new TransactionLog(new DateTime(DateTimeZone.UTC), "createPayment", pendingPayment.getAccountId(), null, contractId));
         final List<ByteString> transactionList = payment.getTransactionsList();
-        //Collection<TransactionOutput> outputs = bitcoinManager.isMine(transactionList.get(0));
-        //Preconditions.checkState(outputs.size() == 1, "Expecting one");
+        // Refuse to broadcast a transaction that does not pay any of our keys
+        final Collection<TransactionOutput> outputs = bitcoinManager.isMine(transactionList.get(0));
+        if (outputs.isEmpty()) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
 
         final Transaction broadcastedTransaction = bitcoinManager.broadcastTransaction(transactionList.get(0));
 
@@ -263,7 +378,7 @@ public class PaymentRequestServlet extends HttpServlet {
 
             // TODO check it may exist!
             final UUID nextContractId = UUID.randomUUID();
-            transactionLogDao.insertTransactionLog(new TransactionLog(new DateTime(DateTimeZone.UTC), "createContract", subscription.getAccountId(), subscription.getId(), nextContractId));
+            transactionLogWriter.append(new TransactionLog(new DateTime(DateTimeZone.UTC), "createContract", subscription.getAccountId(), subscription.getId(), nextContractId));
 
             final long nextMaxAmount = getMaxPaymentAmount(futureChangeOrCancelEvent.getNextPlan());
             Protos.RecurringPaymentContract.Builder nextContractBuilder = Protos.RecurringPaymentContract.newBuilder()
@@ -284,7 +399,7 @@ public class PaymentRequestServlet extends HttpServlet {
 
         if (contractIdArg == null) {
             contractDao.insertContract(new Contract(new BitcoinSubscriptionId(ObjectType.SUBSCRIPTION, subscriptionId), currentEvent.getEffectiveDate(), futureChangeOrCancelEvent == null ? null : futureChangeOrCancelEvent.getEffectiveDate(), contractId));
-            transactionLogDao.insertTransactionLog(new TransactionLog(new DateTime(DateTimeZone.UTC), "createContract", subscription.getAccountId(), subscription.getId(), contractId));
+            transactionLogWriter.append(new TransactionLog(new DateTime(DateTimeZone.UTC), "createContract", subscription.getAccountId(), subscription.getId(), contractId));
         }
 
         Protos.RecurringPaymentDetails recurringPaymentDetails = Protos.RecurringPaymentDetails.newBuilder()
@@ -327,21 +442,76 @@ public class PaymentRequestServlet extends HttpServlet {
 
     private void pollForPayment(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException, CatalogApiException, PaymentApiException {
         final String contractIdString = req.getParameter("contractId");
-        final String accountIdString = req.getParameter("accountId");
         Preconditions.checkNotNull(contractIdString);
         final UUID contractId = UUID.fromString(contractIdString);
         final String network = Objects.firstNonNull(req.getParameter("network"), "main");
+        final String paymentUrl = createURL(req, BTC_SUBSCRIPTION_PAYMENT_PATH);
+
+        // Tenant and audit trail are resolved on every poll, cached or not
+        final CallContext callContext = createCallContext(req, resp);
+        if (req.getAttribute(LONG_POLL_RESUMED) == null) {
+            final UUID accountId = UUID.fromString(req.getParameter("accountId"));
+            transactionLogWriter.append(new TransactionLog(new DateTime(DateTimeZone.UTC), "pollForPayment", accountId, null, contractId));
+        }
+
+        // Idle polls are answered from the cache, without hitting the database or Kill Bill.
+        // The tenant is part of the variant so that a response is never served across tenants.
+        final String variant = callContext.getTenantId() + " " + network + " " + paymentUrl;
+        CachedPaymentRequest paymentRequest = paymentRequestCache.get(contractId.toString(), variant);
+        if (paymentRequest == null) {
+            paymentRequest = buildPaymentRequest(contractId, network, paymentUrl, variant, callContext);
+        }
+
+        // Long poll: wait for an invoice instead of answering "No invoice to pay" right away
+        if (paymentRequest.getPaymentId() == null && req.getAttribute(LONG_POLL_RESUMED) == null) {
+            final long waitMs = getLongPollWaitMs(req);
+            if (waitMs > 0 && req.isAsyncSupported() && pollingWaiters.hasCapacity()) {
+                req.setAttribute(LONG_POLL_RESUMED, Boolean.TRUE);
+                pollingWaiters.park(contractId.toString(), req.startAsync(req, resp), waitMs);
+                // Covers a payment inserted between building the response and parking
+                if (!paymentRequestCache.isCurrent(contractId.toString(), paymentRequest)) {
+                    pollingWaiters.wake(contractId.toString());
+                }
+                return;
+            }
+        }
+
+        resp.setHeader("ETag", paymentRequest.getEtag());
+        if (paymentRequest.isNotModified(req.getHeader("If-None-Match"))) {
+            paymentRequestCache.recordNotModified();
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setContentType("application/bitcoin-paymentrequest");
+        resp.getOutputStream().write(paymentRequest.getBody());
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private long getLongPollWaitMs(final HttpServletRequest req) {
+        final String waitSeconds = req.getParameter("wait");
+        if (waitSeconds == null) {
+            return 0;
+        }
+        try {
+            return Math.min(TimeUnit.SECONDS.toMillis(Long.valueOf(waitSeconds)), maxLongPollWaitMs);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private CachedPaymentRequest buildPaymentRequest(final UUID contractId, final String network, final String paymentUrl,
+                                                     final String variant, final CallContext callContext) throws PaymentApiException {
+        // Captured before reading the rows, so that a concurrent change prevents caching what we build
+        final long cacheGeneration = paymentRequestCache.getGeneration();
 
         final List<PendingPayment> pendingPayments = paymentDao.getByBtcContractId(contractId);
         // TODO PIERRE combine multiple pending payments as long as this is within contract bounds.
         final PendingPayment pendingPayment = pendingPayments.size() > 0 ? pendingPayments.get(0) : null;
 
-        final Payment payment = pendingPayment != null ? killbillAPI.getPaymentApi().getPayment(pendingPayment.getPaymentId(), false, createCallContext(req, resp)) : null;
+        final Payment payment = pendingPayment != null ? killbillAPI.getPaymentApi().getPayment(pendingPayment.getPaymentId(), false, callContext) : null;
         Preconditions.checkState(payment == null || payment.getCurrency() == Currency.BTC);
 
-        final UUID accountId = UUID.fromString(accountIdString);
-        transactionLogDao.insertTransactionLog(new TransactionLog(new DateTime(DateTimeZone.UTC), "pollForPayment", accountId, null, contractId));
-
         final long paymentAmountInSatochi = payment != null ? payment.getAmount().longValue() * BTC_TO_SATOSHIS : 0L;
 
         final DateTime now = new DateTime(DateTimeZone.UTC);
@@ -353,13 +523,16 @@ public class PaymentRequestServlet extends HttpServlet {
                       .setTime(now.getMillis())
                       .setExpires(now.plusDays(1).getMillis())
                       .setMemo(memo)
-                      .setPaymentUrl(createURL(req, BTC_SUBSCRIPTION_PAYMENT_PATH))
+                      .setPaymentUrl(paymentUrl)
                       .setMerchantData(ByteString.copyFrom(contractId.toString().getBytes()));
         if (paymentAmountInSatochi > 0) {
             final Protos.Output.Builder outputBuilder = Protos.Output.newBuilder();
             outputBuilder.setAmount(paymentAmountInSatochi);
-            final ECKey newPaymentKey = bitcoinManager.addKey();
-            outputBuilder.setScript(ByteString.copyFrom(ScriptBuilder.createOutputScript(newPaymentKey).getProgram()));
+            // One receive address per pending payment, however many times the wallet polls
+            final String receiveAddress = pendingPayment.getBtcReceiveAddress() != null ?
+                                          pendingPayment.getBtcReceiveAddress() :
+                                          paymentDao.bindReceiveAddress(pendingPayment.getRecordId(), bitcoinManager.issueReceiveAddress());
+            outputBuilder.setScript(ByteString.copyFrom(bitcoinManager.createOutputScript(receiveAddress).getProgram()));
             final Protos.Output output = outputBuilder.build();
             detailsBuilder.addOutputs(output);
         }
@@ -373,9 +546,7 @@ public class PaymentRequestServlet extends HttpServlet {
                         //.setSignature(null)
                 .build();
 
-        result.writeTo(resp.getOutputStream());
-        resp.setContentType("application/bitcoin-paymentrequest");
-        resp.setStatus(HttpServletResponse.SC_OK);
+        return paymentRequestCache.put(contractId.toString(), variant, pendingPayment != null ? pendingPayment.getPaymentId() : null, result.toByteArray(), cacheGeneration);
     }
 
     private String createURL(final HttpServletRequest req, final String path) {
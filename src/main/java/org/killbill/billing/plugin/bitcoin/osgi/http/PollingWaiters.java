@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Long polls parked until a pending payment is registered for their contract.
+ * <p/>
+ * A parked poll is resumed exactly once, either when a payment for its contract is inserted, when it times out or
+ * when the plugin stops: the request is then dispatched again to the servlet, which answers it normally.
+ * <p/>
+ * Each contract has its own set of waiters, which is also the lock guarding it. A set is only ever removed from the map
+ * while holding its lock, so a poll parking concurrently with a wake (or with the last waiter leaving) either lands in
+ * the live set or retries with a new one, and empty sets do not linger.
+ */
+public class PollingWaiters implements PendingPaymentListener {
+
+    private static final Logger log = LoggerFactory.getLogger(PollingWaiters.class);
+
+    private final int maxParked;
+    private final ConcurrentMap<String, Set<Waiter>> waitersByContractId;
+    private final AtomicInteger parked;
+    private final AtomicLong woken;
+    private final AtomicLong timedOut;
+    private final AtomicLong rejected;
+
+    public PollingWaiters(final int maxParked) {
+        this.maxParked = maxParked;
+        this.waitersByContractId = new ConcurrentHashMap<String, Set<Waiter>>();
+        this.parked = new AtomicInteger();
+        this.woken = new AtomicLong();
+        this.timedOut = new AtomicLong();
+        this.rejected = new AtomicLong();
+    }
+
+    public boolean hasCapacity() {
+        if (parked.get() < maxParked) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void park(final String contractId, final AsyncContext asyncContext, final long timeoutMs) {
+        final Waiter waiter = new Waiter(contractId, asyncContext);
+        parked.incrementAndGet();
+        asyncContext.setTimeout(timeoutMs);
+        asyncContext.addListener(waiter);
+
+        while (true) {
+            Set<Waiter> waiters = waitersByContractId.get(contractId);
+            if (waiters == null) {
+                final Set<Waiter> newWaiters = new HashSet<Waiter>();
+                waiters = waitersByContractId.putIfAbsent(contractId, newWaiters);
+                if (waiters == null) {
+                    waiters = newWaiters;
+                }
+            }
+            synchronized (waiters) {
+                // Retired by a concurrent wake or release: start over with a fresh set
+                if (waitersByContractId.get(contractId) == waiters) {
+                    if (!waiter.isResumed.get()) {
+                        waiters.add(waiter);
+                    } else if (waiters.isEmpty()) {
+                        // Already timed out or completed before it could be registered
+                        waitersByContractId.remove(contractId, waiters);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    public void wake(final String contractId) {
+        final Set<Waiter> waiters = waitersByContractId.get(contractId);
+        if (waiters == null) {
+            return;
+        }
+        final List<Waiter> toResume;
+        synchronized (waiters) {
+            waitersByContractId.remove(contractId, waiters);
+            toResume = new ArrayList<Waiter>(waiters);
+            waiters.clear();
+        }
+        // Dispatch outside of the lock
+        for (final Waiter waiter : toResume) {
+            if (waiter.resume()) {
+                woken.incrementAndGet();
+            }
+        }
+    }
+
+    public void stop() {
+        for (final String contractId : waitersByContractId.keySet()) {
+            wake(contractId);
+        }
+    }
+
+    @Override
+    public void onInserted(final PendingPayment payment) {
+        if (payment.getBtcContractId() != null) {
+            wake(payment.getBtcContractId());
+        }
+    }
+
+    @Override
+    public void onUpdated(final PendingPayment payment) {
+    }
+
+    @Override
+    public void onRemoved(final UUID paymentId) {
+    }
+
+    @VisibleForTesting
+    int getNbContracts() {
+        return waitersByContractId.size();
+    }
+
+    public int getNbParked() {
+        return parked.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PollingWaiters{" +
+               "parked=" + parked +
+               ", woken=" + woken +
+               ", timedOut=" + timedOut +
+               ", rejected=" + rejected +
+               '}';
+    }
+
+    private final class Waiter implements AsyncListener {
+
+        private final String contractId;
+        private final AsyncContext asyncContext;
+        private final AtomicBoolean isResumed;
+
+        private Waiter(final String contractId, final AsyncContext asyncContext) {
+            this.contractId = contractId;
+            this.asyncContext = asyncContext;
+            this.isResumed = new AtomicBoolean(false);
+        }
+
+        private boolean resume() {
+            if (!release()) {
+                return false;
+            }
+            try {
+                asyncContext.dispatch();
+            } catch (IllegalStateException e) {
+                // Request already completed by the container
+                log.debug("Unable to resume long poll for contract " + contractId, e);
+            }
+            return true;
+        }
+
+        private boolean release() {
+            if (!isResumed.compareAndSet(false, true)) {
+                return false;
+            }
+            parked.decrementAndGet();
+            final Set<Waiter> waiters = waitersByContractId.get(contractId);
+            if (waiters != null) {
+                synchronized (waiters) {
+                    if (waiters.remove(this) && waiters.isEmpty()) {
+                        waitersByContractId.remove(contractId, waiters);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException {
+            if (resume()) {
+                timedOut.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException {
+            release();
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException {
+            release();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException {
+        }
+    }
+}
@@ -8,10 +8,12 @@ CREATE TABLE btc_pending_payments (
     tenant_id char(36),
     btc_tx varchar(128) DEFAULT NULL,
     btc_contract_id char(36) DEFAULT NULL,
+    btc_receive_address varchar(64) DEFAULT NULL,
     PRIMARY KEY(record_id)
 ) CHARACTER SET utf8 COLLATE utf8_bin;
 CREATE UNIQUE INDEX pending_payments_payment_id ON btc_pending_payments(payment_id);
 CREATE UNIQUE INDEX pending_payments_btc_tx ON btc_pending_payments(btc_tx);
+CREATE INDEX pending_payments_tenant_id_record_id ON btc_pending_payments(tenant_id, record_id);
 
 DROP TABLE IF EXISTS transaction_logs;
 CREATE TABLE transaction_logs (
@@ -24,3 +26,47 @@ CREATE TABLE transaction_logs (
     PRIMARY KEY(record_id)
 ) CHARACTER SET utf8 COLLATE utf8_bin;
 
+
+DROP TABLE IF EXISTS btc_notification_retries;
+CREATE TABLE btc_notification_retries (
+    record_id integer NOT NULL AUTO_INCREMENT,
+    payment_id char(36) NOT NULL,
+    account_id char(36) NOT NULL,
+    tenant_id char(36),
+    attempts integer NOT NULL,
+    next_retry_date datetime NOT NULL,
+    last_error varchar(1024) DEFAULT NULL,
+    state varchar(16) NOT NULL DEFAULT 'RETRY',
+    created_date datetime NOT NULL,
+    PRIMARY KEY(record_id)
+) CHARACTER SET utf8 COLLATE utf8_bin;
+CREATE UNIQUE INDEX notification_retries_payment_id ON btc_notification_retries(payment_id);
+CREATE INDEX notification_retries_state_next_retry_date ON btc_notification_retries(state, next_retry_date);
+
+DROP TABLE IF EXISTS btc_forwards;
+CREATE TABLE btc_forwards (
+    record_id integer NOT NULL AUTO_INCREMENT,
+    btc_tx varchar(128) NOT NULL,
+    target_address varchar(1024) NOT NULL,
+    amount bigint NOT NULL,
+    fee bigint NOT NULL,
+    nb_inputs integer NOT NULL,
+    confirmation_depth integer NOT NULL,
+    created_date datetime NOT NULL,
+    updated_date datetime NOT NULL,
+    PRIMARY KEY(record_id)
+) CHARACTER SET utf8 COLLATE utf8_bin;
+CREATE UNIQUE INDEX forwards_btc_tx ON btc_forwards(btc_tx);
+CREATE INDEX forwards_confirmation_depth ON btc_forwards(confirmation_depth);
+CREATE INDEX forwards_created_date ON btc_forwards(created_date);
+
+DROP TABLE IF EXISTS btc_forward_outputs;
+CREATE TABLE btc_forward_outputs (
+    record_id integer NOT NULL AUTO_INCREMENT,
+    btc_tx varchar(128) NOT NULL,
+    target_address varchar(64) NOT NULL,
+    amount bigint NOT NULL,
+    created_date datetime NOT NULL,
+    PRIMARY KEY(record_id)
+) CHARACTER SET utf8 COLLATE utf8_bin;
+CREATE UNIQUE INDEX forward_outputs_btc_tx_target_address ON btc_forward_outputs(btc_tx, target_address);
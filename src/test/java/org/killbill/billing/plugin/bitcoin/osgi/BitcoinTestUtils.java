@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionBroadcaster;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Helpers for the unit tests: configuration from properties, in-memory wallets funded without a chain, and DAOs
+ * without a database.
+ */
+public final class BitcoinTestUtils {
+
+    private static final Random RANDOM = new Random();
+
+    private BitcoinTestUtils() {
+    }
+
+    // Defaults for everything not set, as in the plugin
+    public static BitcoinConfig newConfig(final Map<String, String> properties) {
+        final Properties props = new Properties();
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            props.setProperty("org.killbill.billing.plugin.bitcoin." + entry.getKey(), entry.getValue());
+        }
+        return new ConfigurationObjectFactory(props).build(BitcoinConfig.class);
+    }
+
+    // Transactions are broadcast to nobody
+    public static Wallet newWallet(final NetworkParameters params) {
+        final Wallet wallet = new Wallet(params);
+        wallet.setTransactionBroadcaster(new TransactionBroadcaster() {
+            @Override
+            public ListenableFuture<Transaction> broadcastTransaction(final Transaction tx) {
+                return Futures.immediateFuture(tx);
+            }
+        });
+        return wallet;
+    }
+
+    // Adds to the wallet a transaction paying value to the key, depth blocks deep
+    public static Transaction receive(final Wallet wallet, final ECKey key, final long value, final int depth) {
+        final NetworkParameters params = wallet.getNetworkParameters();
+        final byte[] previousTxHash = new byte[32];
+        RANDOM.nextBytes(previousTxHash);
+
+        final Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, new Sha256Hash(previousTxHash))));
+        tx.addOutput(BigInteger.valueOf(value), key.toAddress(params));
+        tx.getConfidence().setAppearedAtChainHeight(1);
+        tx.getConfidence().setDepthInBlocks(depth);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        return tx;
+    }
+
+    public static DBI noDatabase() {
+        return new DBI(new ConnectionFactory() {
+            @Override
+            public Connection openConnection() throws SQLException {
+                throw new SQLException("No database in this test");
+            }
+        });
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestAccountPartitionedExecutor {
+
+    @Test(groups = "fast")
+    public void testExecuteWaitsForTheTask() {
+        final AccountPartitionedExecutor executor = new AccountPartitionedExecutor("test", 2, 10);
+        final AtomicBoolean ran = new AtomicBoolean();
+        executor.execute(UUID.randomUUID(), new Runnable() {
+            @Override
+            public void run() {
+                sleep(100);
+                ran.set(true);
+            }
+        });
+        // The caller only returns once the task has completed, so that the bus event is acknowledged after processing
+        assertTrue(ran.get());
+        executor.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testTaskFailureIsRethrown() {
+        final AccountPartitionedExecutor executor = new AccountPartitionedExecutor("test", 2, 10);
+        try {
+            executor.execute(UUID.randomUUID(), new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            Assert.fail("The failure of the task should be rethrown to the caller");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "boom");
+        }
+        executor.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testRejectedAfterStop() {
+        final AccountPartitionedExecutor executor = new AccountPartitionedExecutor("test", 2, 10);
+        executor.stop();
+        try {
+            executor.execute(UUID.randomUUID(), new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            Assert.fail("Tasks should be rejected once the executor is stopped");
+        } catch (RejectedExecutionException e) {
+            // Expected, the bus redelivers the event
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEventsOfOneAccountRunInOrder() throws Exception {
+        final AccountPartitionedExecutor executor = new AccountPartitionedExecutor("test", 4, 100);
+        final UUID accountId = UUID.randomUUID();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+
+        // A first bus thread is held inside its task for the account
+        final Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(accountId, new Runnable() {
+                    @Override
+                    public void run() {
+                        firstStarted.countDown();
+                        await(releaseFirst);
+                        order.add(1);
+                    }
+                });
+            }
+        });
+        first.start();
+        assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+
+        // A second bus thread for the same account queues behind it, while another account is not held up
+        final Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(accountId, new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(2);
+                    }
+                });
+            }
+        });
+        second.start();
+        UUID otherAccountId = UUID.randomUUID();
+        while (partitionOf(otherAccountId, 4) == partitionOf(accountId, 4)) {
+            otherAccountId = UUID.randomUUID();
+        }
+        executor.execute(otherAccountId, new Runnable() {
+            @Override
+            public void run() {
+                order.add(3);
+            }
+        });
+
+        releaseFirst.countDown();
+        first.join(10000);
+        second.join(10000);
+        assertEquals(order.size(), 3);
+        assertTrue(order.indexOf(1) < order.indexOf(2));
+        assertEquals((int) order.get(0), 3);
+        executor.stop();
+    }
+
+    private static int partitionOf(final UUID accountId, final int nbPartitions) {
+        return (accountId.hashCode() & Integer.MAX_VALUE) % nbPartitions;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
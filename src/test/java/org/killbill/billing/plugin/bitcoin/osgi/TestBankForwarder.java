@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.ForwardDao;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestBankForwarder {
+
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Test(groups = "fast")
+    public void testParseDestinations() {
+        final String address1 = TestSweepRequests.address(1).toString();
+        final String address2 = TestSweepRequests.address(2).toString();
+
+        final List<ForwardDestination> destinations = BankForwarder.parseDestinations(ImmutableList.<String>of(address1, address2 + ":3:50000"), PARAMS);
+
+        assertEquals(destinations.size(), 2);
+        assertEquals(destinations.get(0).getAddress().toString(), address1);
+        assertEquals(destinations.get(0).getWeight(), 1);
+        Assert.assertNull(destinations.get(0).getCap());
+        assertEquals(destinations.get(1).getWeight(), 3);
+        assertEquals(destinations.get(1).getCap(), BigInteger.valueOf(50000));
+    }
+
+    @Test(groups = "fast")
+    public void testForwardsMissingFromTheLedgerAreRecovered() throws Exception {
+        final String address1 = TestSweepRequests.address(1).toString();
+        final String address2 = TestSweepRequests.address(2).toString();
+        final BitcoinConfig config = BitcoinTestUtils.newConfig(ImmutableMap.<String, String>of("forward.destinations", address1 + "," + address2));
+        final Wallet wallet = BitcoinTestUtils.newWallet(PARAMS);
+        final ECKey key = new ECKey();
+        wallet.addKey(key);
+        BitcoinTestUtils.receive(wallet, key, 100000, 6);
+        BitcoinTestUtils.receive(wallet, key, 100000, 6);
+
+        // Sent before a restart, its ledger entry only lived in memory
+        final List<ForwardDestination> destinations = BankForwarder.parseDestinations(ImmutableList.<String>of(address1, address2), PARAMS);
+        final List<Wallet.SendResult> results = new EmptyWalletSweepStrategy(BigInteger.valueOf(10000)).sweep(wallet, destinations, new SweepStrategy.Listener() {
+            @Override
+            public void onSent(final Wallet.SendResult result) {
+            }
+        });
+        assertEquals(results.size(), 1);
+        final Transaction forwardTx = results.get(0).tx;
+
+        final RecordingForwardDao forwardDao = new RecordingForwardDao();
+        final BankForwarder forwarder = new BankForwarder(config, wallet, PARAMS, forwardDao);
+        Assert.assertTrue(forwarder.recoverUnrecordedForwards());
+        // The received transactions are not forwards
+        assertEquals(forwarder.getNbUnrecordedForwards(), 1);
+
+        Assert.assertTrue(forwarder.writeUnrecordedForwards());
+        assertEquals(forwarder.getNbUnrecordedForwards(), 0);
+        final Map<String, Long> amounts = forwardDao.inserted.get(forwardTx.getHashAsString());
+        assertEquals(amounts.size(), 2);
+        for (final TransactionOutput output : forwardTx.getOutputs()) {
+            final String address = output.getScriptPubKey().getToAddress(PARAMS).toString();
+            assertEquals((long) amounts.get(address), output.getValue().longValue());
+        }
+
+        // Once recorded, nothing is left to recover
+        final BankForwarder restartedForwarder = new BankForwarder(config, wallet, PARAMS, forwardDao);
+        Assert.assertTrue(restartedForwarder.recoverUnrecordedForwards());
+        assertEquals(restartedForwarder.getNbUnrecordedForwards(), 0);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidAddressFailsFast() {
+        BankForwarder.parseDestinations(ImmutableList.<String>of("not-an-address"), PARAMS);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidWeightFailsFast() {
+        BankForwarder.parseDestinations(ImmutableList.<String>of(TestSweepRequests.address(1) + ":heavy"), PARAMS);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testAllZeroWeightsFailsFast() {
+        BankForwarder.parseDestinations(ImmutableList.<String>of(TestSweepRequests.address(1) + ":0", TestSweepRequests.address(2) + ":0"), PARAMS);
+    }
+
+    // The database is never reached
+    private static final class RecordingForwardDao extends ForwardDao {
+
+        private final Map<String, Map<String, Long>> inserted = new HashMap<String, Map<String, Long>>();
+
+        private RecordingForwardDao() {
+            super(BitcoinTestUtils.noDatabase());
+        }
+
+        @Override
+        public void insertForward(final String btcTxHash, final Map<String, Long> amounts, final long fee, final int nbInputs, final DateTime createdDate) {
+            inserted.put(btcTxHash, amounts);
+        }
+
+        @Override
+        public Forward getByBtcTransactionId(final String btcTxHash) {
+            final Map<String, Long> amounts = inserted.get(btcTxHash);
+            return amounts == null ? null : new Forward(1, btcTxHash, Joiner.on(',').join(amounts.keySet()), 0L, 0L, 1, 0, new DateTime(DateTimeZone.UTC));
+        }
+    }
+}
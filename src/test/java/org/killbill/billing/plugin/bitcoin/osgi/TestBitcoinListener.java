@@ -18,6 +18,7 @@
 package org.killbill.billing.plugin.bitcoin.osgi;
 
 import java.math.BigInteger;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -64,7 +65,7 @@ public class TestBitcoinListener {
 
     public TestBitcoinListener(final BitcoinConfig config) {
         this.config = config;
-        this.bitcoinListener = new BitcoinManager(new MockTransactionmanager(), config);
+        this.bitcoinListener = new BitcoinManager(new MockTransactionmanager(), null, null, config);
     }
 
     public void initializeBitcoinListener() {
@@ -125,14 +126,205 @@ public class TestBitcoinListener {
 
             @Override
             public Long getMinForwardBalance() {
-                return null;
+                return 10000000L;
             }
 
             @Override
             public TimeSpan getForwardBankInterval() {
+                return new TimeSpan("1h");
+            }
+
+            @Override
+            public List<String> getForwardDestinations() {
+                return null;
+            }
+
+            @Override
+            public TimeSpan getForwardDebounce() {
+                return new TimeSpan("10s");
+            }
+
+            @Override
+            public String getForwardSweepStrategy() {
+                return "CHUNKED";
+            }
+
+            @Override
+            public int getForwardMaxInputs() {
+                return 200;
+            }
+
+            @Override
+            public int getForwardMaxTransactions() {
+                return 10;
+            }
+
+            @Override
+            public Long getForwardFeePerKb() {
+                return 10000L;
+            }
+
+            @Override
+            public Long getForwardMinInputValue() {
+                return 5460L;
+            }
+
+            @Override
+            public int getForwardMinConfirmations() {
+                return 1;
+            }
+
+            @Override
+            public int getConfirmationThreads() {
+                return 1;
+            }
+
+            @Override
+            public int getConfirmationQueueSize() {
+                return 100;
+            }
+
+            @Override
+            public int getPendingPaymentBatchSize() {
+                return 1;
+            }
+
+            @Override
+            public TimeSpan getPendingPaymentBatchInterval() {
+                return null;
+            }
+
+            @Override
+            public String getTransactionLogMode() {
+                return "SYNC";
+            }
+
+            @Override
+            public int getTransactionLogBufferSize() {
+                return 1;
+            }
+
+            @Override
+            public TimeSpan getTransactionLogFlushInterval() {
+                return null;
+            }
+
+            @Override
+            public int getKeyPoolLowWatermark() {
+                return 1;
+            }
+
+            @Override
+            public int getKeyPoolHighWatermark() {
+                return 5;
+            }
+
+            @Override
+            public int getPaymentRequestCacheSize() {
+                return 100;
+            }
+
+            @Override
+            public TimeSpan getPaymentRequestCacheTtl() {
+                return new TimeSpan("10m");
+            }
+
+            @Override
+            public TimeSpan getMaxPollWait() {
+                return new TimeSpan("60s");
+            }
+
+            @Override
+            public int getMaxParkedPolls() {
+                return 100;
+            }
+
+            @Override
+            public int getPaymentMethodCacheSize() {
+                return 100;
+            }
+
+            @Override
+            public TimeSpan getPaymentMethodCacheTtl() {
+                return new TimeSpan("1h");
+            }
+
+            @Override
+            public int getEventThreads() {
+                return 1;
+            }
+
+            @Override
+            public int getEventQueueSize() {
+                return 100;
+            }
+
+            @Override
+            public TimeSpan getNotificationRetryInitialBackoff() {
+                return new TimeSpan("30s");
+            }
+
+            @Override
+            public TimeSpan getNotificationRetryMaxBackoff() {
+                return new TimeSpan("1h");
+            }
+
+            @Override
+            public TimeSpan getNotificationRetryInterval() {
+                return new TimeSpan("10s");
+            }
+
+            @Override
+            public int getNotificationRetryBatchSize() {
+                return 10;
+            }
+
+            @Override
+            public int getNotificationRetryMaxAttempts() {
+                return 25;
+            }
+
+            @Override
+            public TimeSpan getReconciliationInterval() {
+                // No database behind the mock transaction manager
+                return new TimeSpan("0s");
+            }
+
+            @Override
+            public int getReconciliationPageSize() {
+                return 100;
+            }
+
+            @Override
+            public String getCheckpointsFile() {
                 return null;
             }
 
+            @Override
+            public int getMaxPeerConnections() {
+                return 4;
+            }
+
+            @Override
+            public int getMinBroadcastConnections() {
+                return 0;
+            }
+
+            @Override
+            public double getBloomFilterFalsePositiveRate() {
+                return 0.0005;
+            }
+
+            @Override
+            public String getKeyDerivation() {
+                return "HD";
+            }
+
+            @Override
+            public int getKeyDerivationAccount() {
+                return 0;
+            }
+
         };
         final TestBitcoinListener test = new TestBitcoinListener(config);
         test.initializeBitcoinListener();
@@ -142,7 +334,7 @@ public class TestBitcoinListener {
     public static class MockTransactionmanager extends TransactionManager {
 
         public MockTransactionmanager() {
-            super(null, null, null, null);
+            super(null, null, null, null, null, null);
         }
 
         @Override
@@ -150,5 +342,13 @@ public class TestBitcoinListener {
             logger.info("Received confirmed transcation " + hash);
             return true;
         }
+
+        @Override
+        public int notifyPaymentSystemIfExists(final Collection<String> hashes) {
+            for (final String hash : hashes) {
+                notifyPaymentSystemIfExists(hash);
+            }
+            return hashes.size();
+        }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestChunkedSweepStrategy {
+
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final BigInteger FEE_PER_KB = BigInteger.valueOf(10000);
+
+    private final List<ForwardDestination> destinations = ImmutableList.<ForwardDestination>of(new ForwardDestination(TestSweepRequests.address(1), 1, null));
+
+    private Wallet wallet;
+    private RecordingListener listener;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        wallet = BitcoinTestUtils.newWallet(PARAMS);
+        final ECKey key = new ECKey();
+        wallet.addKey(key);
+        for (int i = 0; i < 5; i++) {
+            BitcoinTestUtils.receive(wallet, key, 100000, 6);
+        }
+        // Worth less than the minimum input value
+        BitcoinTestUtils.receive(wallet, key, 1000, 6);
+        listener = new RecordingListener();
+    }
+
+    @Test(groups = "fast")
+    public void testChunksAreCappedPerSweep() throws InsufficientMoneyException {
+        final ChunkedSweepStrategy strategy = new ChunkedSweepStrategy(2, 2, FEE_PER_KB, BigInteger.valueOf(5000));
+
+        final List<Wallet.SendResult> results = strategy.sweep(wallet, destinations, listener);
+
+        // Three chunks of at most 2 inputs, only 2 transactions per sweep
+        assertEquals(results.size(), 2);
+        assertEquals(listener.results, results);
+        for (final Wallet.SendResult result : results) {
+            assertEquals(result.tx.getInputs().size(), 2);
+            assertEquals(result.tx.getOutputs().size(), 1);
+            // 2 inputs and 2 outputs fit in the first kB
+            assertEquals(result.tx.getOutput(0).getValue(), BigInteger.valueOf(200000).subtract(FEE_PER_KB));
+            assertEquals(result.tx.getOutput(0).getScriptPubKey().getToAddress(PARAMS), TestSweepRequests.address(1));
+        }
+
+        // The last chunk and the dust output are left for the next sweep
+        final List<TransactionOutput> left = SweepRequests.getSpendableOutputs(wallet, BigInteger.ZERO);
+        assertEquals(left.size(), 2);
+        assertEquals(left.get(0).getValue(), BigInteger.valueOf(100000));
+        assertEquals(left.get(1).getValue(), BigInteger.valueOf(1000));
+    }
+
+    @Test(groups = "fast")
+    public void testDustIsNeverSpent() throws InsufficientMoneyException {
+        final ChunkedSweepStrategy strategy = new ChunkedSweepStrategy(2, 10, FEE_PER_KB, BigInteger.valueOf(5000));
+
+        final List<Wallet.SendResult> results = strategy.sweep(wallet, destinations, listener);
+
+        assertEquals(results.size(), 3);
+        assertEquals(results.get(2).tx.getInputs().size(), 1);
+        final List<TransactionOutput> left = SweepRequests.getSpendableOutputs(wallet, BigInteger.ZERO);
+        assertEquals(left.size(), 1);
+        assertEquals(left.get(0).getValue(), BigInteger.valueOf(1000));
+
+        // Nothing worth spending anymore
+        assertEquals(strategy.sweep(wallet, destinations, listener).size(), 0);
+        assertEquals(listener.results.size(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testMinInputValueCoversTheInputFee() throws InsufficientMoneyException {
+        // A configured minimum of 0 still skips inputs worth less than their own fee (148 bytes at 10000 per kB)
+        final ChunkedSweepStrategy strategy = new ChunkedSweepStrategy(10, 10, FEE_PER_KB, BigInteger.ZERO);
+
+        final List<Wallet.SendResult> results = strategy.sweep(wallet, destinations, listener);
+
+        assertEquals(results.size(), 1);
+        assertEquals(results.get(0).tx.getInputs().size(), 5);
+    }
+
+    private static final class RecordingListener implements SweepStrategy.Listener {
+
+        private final List<Wallet.SendResult> results = new ArrayList<Wallet.SendResult>();
+
+        @Override
+        public void onSent(final Wallet.SendResult result) {
+            results.add(result);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestConfirmationProcessor {
+
+    private static final long TIMEOUT_SEC = 10;
+
+    private StubTransactionManager transactionManager;
+    private ConfirmationProcessor confirmationProcessor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        transactionManager = new StubTransactionManager();
+        confirmationProcessor = new ConfirmationProcessor(transactionManager, BitcoinTestUtils.newConfig(ImmutableMap.<String, String>of("confirmation.threads", "1",
+                                                                                                                                       "confirmation.queue.size", "1")));
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        transactionManager.release.countDown();
+        confirmationProcessor.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testBatchIsNotifiedThenCalledBack() throws InterruptedException {
+        transactionManager.release.countDown();
+        final RecordingCallback callback = new RecordingCallback(1);
+
+        assertEquals(confirmationProcessor.submit(ImmutableList.<String>of("tx1", "tx2"), callback), 2);
+
+        Assert.assertTrue(callback.done.await(TIMEOUT_SEC, TimeUnit.SECONDS));
+        assertEquals(transactionManager.batches, ImmutableList.<List<String>>of(ImmutableList.<String>of("tx1", "tx2")));
+        assertEquals(callback.processed, ImmutableList.<String>of("tx1", "tx2"));
+        assertEquals(confirmationProcessor.getSubmitted(), 2);
+        assertEquals(confirmationProcessor.getNotified(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testInFlightHashesAreDeduplicated() throws InterruptedException {
+        confirmationProcessor.submit(ImmutableList.<String>of("tx1"));
+        Assert.assertTrue(transactionManager.started.await(TIMEOUT_SEC, TimeUnit.SECONDS));
+
+        // tx1 is being processed, only tx2 is queued
+        assertEquals(confirmationProcessor.submit(ImmutableList.<String>of("tx1", "tx2")), 1);
+        assertEquals(confirmationProcessor.getDeduplicated(), 1);
+        assertEquals(confirmationProcessor.getQueueDepth(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFullQueueRejectsWithoutCallback() throws InterruptedException {
+        final RecordingCallback callback = new RecordingCallback(1);
+        confirmationProcessor.submit(ImmutableList.<String>of("tx1"));
+        Assert.assertTrue(transactionManager.started.await(TIMEOUT_SEC, TimeUnit.SECONDS));
+        confirmationProcessor.submit(ImmutableList.<String>of("tx2"));
+
+        // One thread busy, one batch queued
+        assertEquals(confirmationProcessor.submit(ImmutableList.<String>of("tx3"), callback), 0);
+        assertEquals(confirmationProcessor.getRejected(), 1);
+
+        // Rejected hashes can be submitted again once there is room
+        transactionManager.release.countDown();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SEC);
+        while (confirmationProcessor.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(confirmationProcessor.submit(ImmutableList.<String>of("tx3"), callback), 1);
+        Assert.assertTrue(callback.done.await(TIMEOUT_SEC, TimeUnit.SECONDS));
+        assertEquals(callback.processed, ImmutableList.<String>of("tx3"));
+    }
+
+    @Test(groups = "fast")
+    public void testFailedBatchIsNotCalledBack() throws InterruptedException {
+        transactionManager.release.countDown();
+        transactionManager.error = new IllegalStateException("Database unavailable");
+        final RecordingCallback callback = new RecordingCallback(1);
+
+        confirmationProcessor.submit(ImmutableList.<String>of("tx1"), callback);
+
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SEC);
+        while (confirmationProcessor.getFailed() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(confirmationProcessor.getFailed(), 1);
+        Assert.assertTrue(callback.processed.isEmpty());
+
+        // No longer in flight
+        transactionManager.error = null;
+        assertEquals(confirmationProcessor.submit(ImmutableList.<String>of("tx1"), callback), 1);
+        Assert.assertTrue(callback.done.await(TIMEOUT_SEC, TimeUnit.SECONDS));
+    }
+
+    private static final class StubTransactionManager extends TransactionManager {
+
+        private final List<List<String>> batches = new CopyOnWriteArrayList<List<String>>();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile RuntimeException error;
+
+        private StubTransactionManager() {
+            super(null, null, null, null, null, null);
+        }
+
+        @Override
+        public int notifyPaymentSystemIfExists(final Collection<String> hashes) {
+            started.countDown();
+            try {
+                release.await(TIMEOUT_SEC, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            batches.add(new ArrayList<String>(hashes));
+            return hashes.size();
+        }
+    }
+
+    private static final class RecordingCallback implements ConfirmationProcessor.Callback {
+
+        private final List<String> processed = new CopyOnWriteArrayList<String>();
+        private final CountDownLatch done;
+
+        private RecordingCallback(final int nbBatches) {
+            this.done = new CountDownLatch(nbBatches);
+        }
+
+        @Override
+        public void onProcessed(final List<String> txHashes) {
+            processed.addAll(txHashes);
+            done.countDown();
+        }
+    }
+}
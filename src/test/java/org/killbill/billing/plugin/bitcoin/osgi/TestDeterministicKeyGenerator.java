@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.io.Files;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestDeterministicKeyGenerator {
+
+    private File dir;
+    private File seedFile;
+    private File indexFile;
+    private Wallet wallet;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        dir = Files.createTempDir();
+        dir.deleteOnExit();
+        seedFile = new File(dir, "test.seed");
+        indexFile = new File(dir, "test.seedindex");
+        wallet = new Wallet(MainNetParams.get());
+    }
+
+    @Test(groups = "fast")
+    public void testDerivationIsDeterministic() {
+        final List<ECKey> keys = newGenerator(0, indexFile).generateKeys(3);
+        Assert.assertTrue(seedFile.exists());
+
+        // Same seed and account, from scratch
+        final List<ECKey> sameKeys = newGenerator(0, new File(dir, "other.seedindex")).generateKeys(3);
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(sameKeys.get(i).getPubKeyHash(), keys.get(i).getPubKeyHash());
+        }
+
+        // Another account derives other keys
+        final List<ECKey> otherAccountKeys = newGenerator(1, new File(dir, "account1.seedindex")).generateKeys(1);
+        Assert.assertFalse(Arrays.equals(otherAccountKeys.get(0).getPubKeyHash(), keys.get(0).getPubKeyHash()));
+    }
+
+    @Test(groups = "fast")
+    public void testIndexIsNeverIssuedTwice() {
+        final List<ECKey> keys = deriveAll(3);
+        newGenerator(0, indexFile).generateKeys(2);
+        // Restart: the saved index is used even though the keys never made it to the wallet
+        final List<ECKey> next = newGenerator(0, indexFile).generateKeys(1);
+
+        assertEquals(next.get(0).getPubKeyHash(), keys.get(2).getPubKeyHash());
+    }
+
+    @Test(groups = "fast")
+    public void testIndexRecoveredAcrossGaps() {
+        final List<ECKey> keys = deriveAll(8);
+        // Keys 3 and 4 were saved in the index but never added to the wallet
+        wallet.addKey(keys.get(0));
+        wallet.addKey(keys.get(1));
+        wallet.addKey(keys.get(2));
+        wallet.addKey(keys.get(5));
+        Assert.assertFalse(indexFile.exists());
+
+        final List<ECKey> next = newGenerator(0, indexFile, 5).generateKeys(1);
+        assertEquals(next.get(0).getPubKeyHash(), keys.get(6).getPubKeyHash());
+    }
+
+    @Test(groups = "fast")
+    public void testIndexRecoveryStopsAtGapLimit() {
+        final List<ECKey> keys = deriveAll(8);
+        wallet.addKey(keys.get(0));
+        wallet.addKey(keys.get(5));
+        Assert.assertFalse(indexFile.exists());
+
+        final List<ECKey> next = newGenerator(0, indexFile, 2).generateKeys(1);
+        assertEquals(next.get(0).getPubKeyHash(), keys.get(1).getPubKeyHash());
+    }
+
+    @Test(groups = "fast")
+    public void testIndexRecoveredFromEmptyWallet() {
+        final List<ECKey> keys = deriveAll(1);
+        Assert.assertFalse(indexFile.exists());
+
+        final List<ECKey> next = newGenerator(0, indexFile).generateKeys(1);
+        assertEquals(next.get(0).getPubKeyHash(), keys.get(0).getPubKeyHash());
+    }
+
+    // The first nbKeys keys of the seed, derived with a separate index file while the wallet is still empty
+    private List<ECKey> deriveAll(final int nbKeys) {
+        return newGenerator(0, new File(dir, "all.seedindex")).generateKeys(nbKeys);
+    }
+
+    private DeterministicKeyGenerator newGenerator(final int account, final File index) {
+        return newGenerator(account, index, DeterministicKeyGenerator.DEFAULT_GAP_LIMIT);
+    }
+
+    private DeterministicKeyGenerator newGenerator(final int account, final File index, final int gapLimit) {
+        return new DeterministicKeyGenerator(seedFile, index, account, gapLimit, wallet);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.io.File;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestKeyPool {
+
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final long TIMEOUT_MS = 10000;
+
+    private Wallet wallet;
+    private File poolFile;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        wallet = new Wallet(PARAMS);
+        final File dir = Files.createTempDir();
+        dir.deleteOnExit();
+        poolFile = new File(dir, "test.keypool");
+    }
+
+    @Test(groups = "fast")
+    public void testPoolIsRefilledAndPersisted() throws Exception {
+        final KeyPool keyPool = newKeyPool(2, 5);
+        keyPool.start();
+        waitForSize(keyPool, 5);
+        assertEquals(wallet.getKeychainSize(), 5);
+
+        final ECKey taken = keyPool.take();
+        Assert.assertNotNull(wallet.findKeyFromPubHash(taken.getPubKeyHash()));
+        // Still above the low watermark
+        assertEquals(keyPool.getSize(), 4);
+        keyPool.stop();
+
+        final List<String> saved = Files.readLines(poolFile, Charsets.UTF_8);
+        assertEquals(saved.size(), 4);
+        Assert.assertFalse(saved.contains(taken.toAddress(PARAMS).toString()));
+
+        // Restart: the saved keys are handed out first, in order
+        final KeyPool reloaded = newKeyPool(2, 5);
+        reloaded.start();
+        assertEquals(reloaded.getSize(), 4);
+        assertEquals(reloaded.take().toAddress(PARAMS).toString(), saved.get(0));
+        assertEquals(reloaded.getMisses(), 0);
+        reloaded.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testRefillBelowLowWatermark() throws Exception {
+        final KeyPool keyPool = newKeyPool(3, 4);
+        keyPool.start();
+        waitForSize(keyPool, 4);
+
+        keyPool.take();
+        keyPool.take();
+        // 2 left, below the low watermark of 3
+        waitForSize(keyPool, 4);
+        assertEquals(wallet.getKeychainSize(), 6);
+        keyPool.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testExhaustedPoolGeneratesKey() {
+        final KeyPool keyPool = newKeyPool(0, 0);
+        keyPool.start();
+
+        final ECKey key = keyPool.take();
+
+        Assert.assertNotNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertEquals(keyPool.getMisses(), 1);
+        assertEquals(keyPool.getSize(), 0);
+        keyPool.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testKeysMissingFromWalletAreNotReloaded() throws Exception {
+        final ECKey unknownKey = new ECKey();
+        Files.write(unknownKey.toAddress(PARAMS).toString(), poolFile, Charsets.UTF_8);
+
+        final KeyPool keyPool = newKeyPool(0, 0);
+        keyPool.start();
+
+        assertEquals(keyPool.getSize(), 0);
+        keyPool.stop();
+    }
+
+    private KeyPool newKeyPool(final int lowWatermark, final int highWatermark) {
+        final BitcoinConfig config = BitcoinTestUtils.newConfig(ImmutableMap.<String, String>of("key.pool.low", String.valueOf(lowWatermark),
+                                                                                                "key.pool.high", String.valueOf(highWatermark)));
+        return new KeyPool(wallet, new RandomKeyGenerator(), PARAMS, poolFile, config);
+    }
+
+    private static void waitForSize(final KeyPool keyPool, final int size) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (keyPool.getSize() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(keyPool.getSize(), size);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.NotificationRetryDao;
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestNotificationRetryQueue {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private RecordingRetryDao retryDao;
+    private RecordingPaymentDao paymentDao;
+    private NotificationRetryQueue retryQueue;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        retryDao = new RecordingRetryDao();
+        paymentDao = new RecordingPaymentDao();
+        retryQueue = new NotificationRetryQueue(retryDao, paymentDao, 1000, 60000, 1000, 10, MAX_ATTEMPTS);
+    }
+
+    @Test(groups = "fast")
+    public void testSuccessRemovesRetryAndPayment() {
+        final NotificationRetry retry = newRetry(1);
+        retryDao.due.add(retry);
+
+        retryQueue.drain(new StubTransactionManager(null));
+
+        assertEquals(retryDao.removed, ImmutableList.<NotificationRetry>of(retry));
+        assertEquals(paymentDao.removed, ImmutableList.<UUID>of(retry.getPaymentId()));
+        Assert.assertTrue(retryDao.updated.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testTransientFailureIsRescheduled() {
+        final NotificationRetry retry = newRetry(1);
+        retryDao.due.add(retry);
+
+        retryQueue.drain(new StubTransactionManager(new IllegalStateException("Kill Bill unavailable")));
+
+        assertEquals(retryDao.updated.size(), 1);
+        assertEquals(retryDao.updated.get(0).getAttempts(), 2);
+        Assert.assertTrue(retryDao.updated.get(0).getNextRetryDate().isAfterNow());
+        Assert.assertTrue(retryDao.removed.isEmpty());
+        Assert.assertTrue(paymentDao.removed.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testPermanentFailureIsNotRetried() {
+        final NotificationRetry retry = newRetry(1);
+        retryDao.due.add(retry);
+
+        retryQueue.drain(new StubTransactionManager(new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, retry.getAccountId())));
+
+        Assert.assertFalse(NotificationRetryQueue.isRetryable(new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, retry.getAccountId())));
+        assertEquals(retryDao.removed, ImmutableList.<NotificationRetry>of(retry));
+        assertEquals(paymentDao.removed, ImmutableList.<UUID>of(retry.getPaymentId()));
+        Assert.assertTrue(retryDao.updated.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testMaxAttemptsMovesToDeadLetter() {
+        final NotificationRetry retry = newRetry(MAX_ATTEMPTS - 1);
+        retryDao.due.add(retry);
+
+        retryQueue.drain(new StubTransactionManager(new IllegalStateException("Kill Bill unavailable")));
+
+        assertEquals(retryDao.deadLettered.size(), 1);
+        assertEquals(retryDao.deadLettered.get(0).getAttempts(), MAX_ATTEMPTS);
+        Assert.assertTrue(retryDao.updated.isEmpty());
+        Assert.assertTrue(retryDao.removed.isEmpty());
+        // Still pending, for manual resolution
+        Assert.assertTrue(paymentDao.removed.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testRemovalOnlyIsRetried() {
+        final PendingPayment pendingPayment = newPendingPayment();
+        paymentDao.isFailing = true;
+        retryQueue.removeLater(pendingPayment);
+        assertEquals(retryDao.removals.size(), 1);
+
+        final StubTransactionManager transactionManager = new StubTransactionManager(null);
+        retryQueue.drain(transactionManager);
+        Assert.assertTrue(paymentDao.removed.isEmpty());
+        assertEquals(retryDao.removals.size(), 1);
+
+        paymentDao.isFailing = false;
+        retryQueue.drain(transactionManager);
+        assertEquals(paymentDao.removed, ImmutableList.<UUID>of(pendingPayment.getPaymentId()));
+        Assert.assertTrue(retryDao.removals.isEmpty());
+        assertEquals(transactionManager.nbNotifications, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRemovalSurvivesRestart() {
+        final PendingPayment pendingPayment = newPendingPayment();
+        paymentDao.isFailing = true;
+        retryQueue.removeLater(pendingPayment);
+        retryQueue.stop();
+
+        // Only what the database holds is left after the restart
+        paymentDao.isFailing = false;
+        final NotificationRetryQueue restartedQueue = new NotificationRetryQueue(retryDao, paymentDao, 1000, 60000, 1000, 10, MAX_ATTEMPTS);
+        final StubTransactionManager transactionManager = new StubTransactionManager(null);
+        restartedQueue.drain(transactionManager);
+
+        assertEquals(paymentDao.removed, ImmutableList.<UUID>of(pendingPayment.getPaymentId()));
+        Assert.assertTrue(retryDao.removals.isEmpty());
+        assertEquals(transactionManager.nbNotifications, 0);
+        restartedQueue.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testNotifiedRetryIsNotNotifiedAgainAfterRestart() {
+        final NotificationRetry retry = newRetry(1);
+        retryDao.due.add(retry);
+        paymentDao.isFailing = true;
+
+        retryQueue.drain(new StubTransactionManager(null));
+        Assert.assertTrue(paymentDao.removed.isEmpty());
+        // The retry row now only stands for the removal
+        assertEquals(retryDao.removals, ImmutableList.<NotificationRetry>of(retry));
+        retryQueue.stop();
+
+        paymentDao.isFailing = false;
+        final NotificationRetryQueue restartedQueue = new NotificationRetryQueue(retryDao, paymentDao, 1000, 60000, 1000, 10, MAX_ATTEMPTS);
+        final StubTransactionManager transactionManager = new StubTransactionManager(null);
+        restartedQueue.drain(transactionManager);
+
+        assertEquals(paymentDao.removed, ImmutableList.<UUID>of(retry.getPaymentId()));
+        Assert.assertTrue(retryDao.removals.isEmpty());
+        assertEquals(transactionManager.nbNotifications, 0);
+        restartedQueue.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testRemovalIsKeptInMemoryWhenItCannotBeRecorded() {
+        final PendingPayment pendingPayment = newPendingPayment();
+        paymentDao.isFailing = true;
+        retryDao.isFailing = true;
+        retryQueue.removeLater(pendingPayment);
+        Assert.assertTrue(retryDao.removals.isEmpty());
+
+        // Recorded once the database is back, then removed
+        retryDao.isFailing = false;
+        paymentDao.isFailing = false;
+        retryQueue.drain(new StubTransactionManager(null));
+        assertEquals(paymentDao.removed, ImmutableList.<UUID>of(pendingPayment.getPaymentId()));
+        Assert.assertTrue(retryDao.removals.isEmpty());
+    }
+
+    private PendingPayment newPendingPayment() {
+        return new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, UUID.randomUUID().toString());
+    }
+
+    private NotificationRetry newRetry(final int attempts) {
+        return new NotificationRetry(1, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), attempts, new DateTime(DateTimeZone.UTC), null);
+    }
+
+    private static DBI noDatabase() {
+        return new DBI(new ConnectionFactory() {
+            @Override
+            public Connection openConnection() throws SQLException {
+                throw new SQLException("No database in this test");
+            }
+        });
+    }
+
+    private static final class StubTransactionManager extends TransactionManager {
+
+        private final Exception error;
+        private int nbNotifications;
+
+        private StubTransactionManager(final Exception error) {
+            super(null, null, null, null, null, null);
+            this.error = error;
+        }
+
+        @Override
+        public void notifyKillbill(final UUID accountId, final UUID paymentId, final UUID tenantId) throws AccountApiException, PaymentApiException {
+            nbNotifications++;
+            if (error instanceof AccountApiException) {
+                throw (AccountApiException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+        }
+    }
+
+    private static final class RecordingRetryDao extends NotificationRetryDao {
+
+        private final List<NotificationRetry> due = new ArrayList<NotificationRetry>();
+        private final List<NotificationRetry> updated = new ArrayList<NotificationRetry>();
+        private final List<NotificationRetry> deadLettered = new ArrayList<NotificationRetry>();
+        private final List<NotificationRetry> removed = new ArrayList<NotificationRetry>();
+        // REMOVE rows, kept across queue instances
+        private final List<NotificationRetry> removals = new ArrayList<NotificationRetry>();
+        private int nextRecordId = 100;
+        private boolean isFailing = false;
+
+        private RecordingRetryDao() {
+            super(noDatabase());
+        }
+
+        @Override
+        public List<NotificationRetry> getDueRetries(final DateTime now, final int limit) {
+            final List<NotificationRetry> result = new ArrayList<NotificationRetry>(due);
+            due.clear();
+            return result;
+        }
+
+        @Override
+        public int getNbRetries() {
+            return due.size();
+        }
+
+        @Override
+        public void updateRetries(final Collection<NotificationRetry> retries) {
+            updated.addAll(retries);
+        }
+
+        @Override
+        public void deadLetterRetries(final Collection<NotificationRetry> retries) {
+            deadLettered.addAll(retries);
+        }
+
+        @Override
+        public void insertRemoval(final PendingPayment payment, final DateTime createdDate) {
+            if (isFailing) {
+                throw new IllegalStateException("Simulated insert failure");
+            }
+            removals.add(new NotificationRetry(nextRecordId++, payment.getPaymentId(), payment.getAccountId(), payment.getTenantId(), 0, createdDate, null));
+        }
+
+        @Override
+        public List<NotificationRetry> getRemovals(final int limit) {
+            return new ArrayList<NotificationRetry>(removals.subList(0, Math.min(limit, removals.size())));
+        }
+
+        @Override
+        public int getNbRemovals() {
+            return removals.size();
+        }
+
+        @Override
+        public void markRemovals(final Collection<NotificationRetry> retries) {
+            removals.addAll(retries);
+        }
+
+        @Override
+        public void removeRetries(final Collection<NotificationRetry> retries) {
+            removed.addAll(retries);
+            removals.removeAll(retries);
+        }
+    }
+
+    private static final class RecordingPaymentDao extends PendingPaymentDao {
+
+        private final List<UUID> removed = new ArrayList<UUID>();
+        private boolean isFailing = false;
+
+        private RecordingPaymentDao() {
+            super(noDatabase());
+        }
+
+        @Override
+        public void removePendingPayments(final Collection<UUID> paymentIds) {
+            if (paymentIds.isEmpty()) {
+                return;
+            }
+            if (isFailing) {
+                throw new IllegalStateException("Simulated delete failure");
+            }
+            removed.addAll(paymentIds);
+        }
+    }
+}
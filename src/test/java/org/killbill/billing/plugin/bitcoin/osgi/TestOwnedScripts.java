@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestOwnedScripts {
+
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Test(groups = "fast")
+    public void testMatchesKeysOfTheWallet() {
+        final Wallet wallet = new Wallet(PARAMS);
+        final ECKey existingKey = new ECKey();
+        wallet.addKey(existingKey);
+
+        final OwnedScripts ownedScripts = new OwnedScripts(wallet);
+        // Keys added after the set is built are picked up through the wallet listener
+        final ECKey addedKey = new ECKey();
+        wallet.addKey(addedKey);
+        assertEquals(ownedScripts.getSize(), 2);
+
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(BigInteger.valueOf(1000), new ECKey().toAddress(PARAMS));
+        tx.addOutput(BigInteger.valueOf(2000), existingKey.toAddress(PARAMS));
+        tx.addOutput(BigInteger.valueOf(3000), addedKey.toAddress(PARAMS));
+        // Pay to raw public key
+        tx.addOutput(BigInteger.valueOf(4000), addedKey);
+
+        final List<TransactionOutput> mine = ownedScripts.filterMine(tx.getOutputs());
+        assertEquals(mine.size(), 3);
+        assertEquals(mine.get(0).getValue(), BigInteger.valueOf(2000));
+        assertEquals(mine.get(1).getValue(), BigInteger.valueOf(3000));
+        assertEquals(mine.get(2).getValue(), BigInteger.valueOf(4000));
+        for (final TransactionOutput output : tx.getOutputs()) {
+            // Same answer as the wallet
+            assertEquals(ownedScripts.isMine(output), output.isMine(wallet));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStopDetachesFromTheWallet() {
+        final Wallet wallet = new Wallet(PARAMS);
+        final OwnedScripts ownedScripts = new OwnedScripts(wallet);
+        ownedScripts.stop();
+
+        final ECKey key = new ECKey();
+        wallet.addKey(key);
+        assertEquals(ownedScripts.getSize(), 0);
+
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(BigInteger.valueOf(1000), key.toAddress(PARAMS));
+        assertFalse(ownedScripts.isMine(tx.getOutput(0)));
+        assertTrue(tx.getOutput(0).isMine(wallet));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.bitcoin.osgi.dao.PendingPaymentDao;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPendingPaymentReconciler {
+
+    private static final int CONFIDENCE_DEPTH = 6;
+    private static final String UNKNOWN_TX_HASH = "0000000000000000000000000000000000000000000000000000000000000001";
+
+    private Wallet wallet;
+    private ECKey key;
+    private StubPaymentDao paymentDao;
+    private RecordingConfirmationProcessor confirmationProcessor;
+    private PendingPaymentReconciler reconciler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        final BitcoinConfig config = BitcoinTestUtils.newConfig(ImmutableMap.<String, String>of("block.confidence.depth", String.valueOf(CONFIDENCE_DEPTH),
+                                                                                                "reconciliation.page.size", "2"));
+        wallet = BitcoinTestUtils.newWallet(MainNetParams.get());
+        key = new ECKey();
+        wallet.addKey(key);
+        paymentDao = new StubPaymentDao();
+        confirmationProcessor = new RecordingConfirmationProcessor(config);
+        reconciler = new PendingPaymentReconciler(paymentDao, wallet, confirmationProcessor, config);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        reconciler.stop();
+        confirmationProcessor.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testOnlyDeepTransactionsAreSubmitted() {
+        final String deep = addPayment(CONFIDENCE_DEPTH);
+        addPayment(CONFIDENCE_DEPTH - 1);
+        final String deeper = addPayment(CONFIDENCE_DEPTH + 10);
+        // Not in the wallet (yet)
+        paymentDao.payments.add(new PendingPayment(paymentDao.payments.size() + 1, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UNKNOWN_TX_HASH, null, null));
+        final String last = addPayment(CONFIDENCE_DEPTH);
+
+        reconciler.reconcile();
+
+        // Page by page, with a page size of 2
+        assertEquals(confirmationProcessor.batches, ImmutableList.<List<String>>of(ImmutableList.<String>of(deep),
+                                                                                  ImmutableList.<String>of(deeper),
+                                                                                  ImmutableList.<String>of(last)));
+        assertEquals(paymentDao.pages, 3);
+    }
+
+    @Test(groups = "fast")
+    public void testNothingPending() {
+        reconciler.reconcile();
+
+        assertEquals(confirmationProcessor.batches.size(), 0);
+        assertEquals(paymentDao.pages, 1);
+    }
+
+    private String addPayment(final int depth) {
+        final String txHash = BitcoinTestUtils.receive(wallet, key, 100000, depth).getHashAsString();
+        paymentDao.payments.add(new PendingPayment(paymentDao.payments.size() + 1, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), txHash, null, null));
+        return txHash;
+    }
+
+    private static final class StubPaymentDao extends PendingPaymentDao {
+
+        private final List<PendingPayment> payments = new ArrayList<PendingPayment>();
+        private int pages = 0;
+
+        private StubPaymentDao() {
+            super(BitcoinTestUtils.noDatabase());
+        }
+
+        @Override
+        public List<PendingPayment> getPaidPendingPaymentsPage(final Integer fromRecordId, final int limit) {
+            pages++;
+            final List<PendingPayment> page = new ArrayList<PendingPayment>();
+            for (final PendingPayment payment : payments) {
+                if (payment.getRecordId() > fromRecordId && page.size() < limit) {
+                    page.add(payment);
+                }
+            }
+            return page;
+        }
+    }
+
+    private static final class RecordingConfirmationProcessor extends ConfirmationProcessor {
+
+        private final List<List<String>> batches = new ArrayList<List<String>>();
+
+        private RecordingConfirmationProcessor(final BitcoinConfig config) {
+            super(null, config);
+        }
+
+        @Override
+        public int submit(final Collection<String> txHashes) {
+            batches.add(ImmutableList.<String>copyOf(txHashes));
+            return txHashes.size();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestSweepRequests {
+
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Test(groups = "fast")
+    public void testAllocateSplitsTotalByWeight() {
+        final BigInteger total = BigInteger.valueOf(1000001);
+        final List<BigInteger> amounts = SweepRequests.allocate(total, ImmutableList.<ForwardDestination>of(destination(1, 1, null), destination(2, 2, null)));
+
+        assertEquals(amounts.get(0), BigInteger.valueOf(333333));
+        // Rounding goes to the last destination
+        assertEquals(amounts.get(1), BigInteger.valueOf(666668));
+        assertEquals(sum(amounts), total);
+    }
+
+    @Test(groups = "fast")
+    public void testAllocateRespectsCaps() {
+        final BigInteger total = BigInteger.valueOf(1000000);
+        final List<BigInteger> amounts = SweepRequests.allocate(total, ImmutableList.<ForwardDestination>of(destination(1, 1, BigInteger.valueOf(100000)),
+                                                                                                            destination(2, 1, null),
+                                                                                                            destination(3, 1, BigInteger.valueOf(500000))));
+
+        assertEquals(amounts.get(0), BigInteger.valueOf(100000));
+        assertEquals(amounts.get(2), BigInteger.valueOf(450000));
+        assertEquals(amounts.get(1), BigInteger.valueOf(450000));
+        assertEquals(sum(amounts), total);
+    }
+
+    @Test(groups = "fast")
+    public void testAllocateRedistributesDust() {
+        final BigInteger total = BigInteger.valueOf(1000000);
+        final List<BigInteger> amounts = SweepRequests.allocate(total, ImmutableList.<ForwardDestination>of(destination(1, 1000, null), destination(2, 1, null)));
+
+        // 1000 satoshis would be dust: the other destination gets everything
+        Assert.assertTrue(BigInteger.valueOf(1000).compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0);
+        assertEquals(amounts.get(0), total);
+        assertEquals(amounts.get(1), BigInteger.ZERO);
+    }
+
+    @Test(groups = "fast")
+    public void testAllocateAllCappedLeavesChange() {
+        final BigInteger total = BigInteger.valueOf(1000000);
+        final List<BigInteger> amounts = SweepRequests.allocate(total, ImmutableList.<ForwardDestination>of(destination(1, 1, BigInteger.valueOf(100000)),
+                                                                                                            destination(2, 3, BigInteger.valueOf(200000))));
+
+        assertEquals(amounts.get(0), BigInteger.valueOf(100000));
+        assertEquals(amounts.get(1), BigInteger.valueOf(200000));
+        assertEquals(total.subtract(sum(amounts)), BigInteger.valueOf(700000));
+    }
+
+    @Test(groups = "fast")
+    public void testAllocateSkipsZeroWeight() {
+        final BigInteger total = BigInteger.valueOf(1000000);
+        final List<BigInteger> amounts = SweepRequests.allocate(total, ImmutableList.<ForwardDestination>of(destination(1, 0, null), destination(2, 1, null)));
+
+        assertEquals(amounts.get(0), BigInteger.ZERO);
+        assertEquals(amounts.get(1), total);
+    }
+
+    @Test(groups = "fast")
+    public void testCreateSpendsInputsMinusFee() {
+        final Wallet wallet = new Wallet(PARAMS);
+        final List<TransactionOutput> inputs = ImmutableList.<TransactionOutput>of(output(600000), output(500000));
+        final BigInteger feePerKb = BigInteger.valueOf(10000);
+
+        final Wallet.SendRequest req = SweepRequests.create(wallet, inputs, ImmutableList.<ForwardDestination>of(destination(1, 1, null), destination(2, 1, null)), feePerKb);
+
+        // 2 inputs and 3 outputs fit in the first kB
+        assertEquals(req.fee, feePerKb);
+        assertEquals(req.tx.getOutputs().size(), 2);
+        BigInteger totalOutput = BigInteger.ZERO;
+        for (final TransactionOutput output : req.tx.getOutputs()) {
+            totalOutput = totalOutput.add(output.getValue());
+        }
+        assertEquals(totalOutput, BigInteger.valueOf(1100000).subtract(req.fee));
+    }
+
+    @Test(groups = "fast")
+    public void testCreateNotWorthTheFee() {
+        final Wallet wallet = new Wallet(PARAMS);
+        final List<TransactionOutput> inputs = ImmutableList.<TransactionOutput>of(output(12000));
+
+        Assert.assertNull(SweepRequests.create(wallet, inputs, ImmutableList.<ForwardDestination>of(destination(1, 1, null)), BigInteger.valueOf(10000)));
+    }
+
+    static Address address(final int id) {
+        final byte[] hash160 = new byte[20];
+        hash160[19] = (byte) id;
+        return new Address(PARAMS, hash160);
+    }
+
+    private static ForwardDestination destination(final int id, final int weight, final BigInteger cap) {
+        return new ForwardDestination(address(id), weight, cap);
+    }
+
+    private static TransactionOutput output(final long value) {
+        return new TransactionOutput(PARAMS, null, BigInteger.valueOf(value), address(100));
+    }
+
+    private static BigInteger sum(final List<BigInteger> amounts) {
+        BigInteger sum = BigInteger.ZERO;
+        for (final BigInteger amount : amounts) {
+            sum = sum.add(amount);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.bitcoin.osgi.Forward;
+import org.killbill.billing.plugin.bitcoin.osgi.ForwardOutput;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestForwardDao {
+
+    private static final Map<String, Long> ONE_SATOSHI = ImmutableMap.<String, Long>of("addr", 1L);
+
+    private DataSource dataSource;
+    private ForwardDao dao;
+
+    @BeforeSuite(groups = "sql")
+    public void setup() {
+        dataSource = createDataSource();
+        dao = new ForwardDao(new BitcoinDBI(dataSource));
+    }
+
+    @BeforeMethod(groups = "sql")
+    public void setuptest() throws SQLException {
+        cleanupTable();
+    }
+
+    @Test(groups = "sql")
+    public void testInsertIsIdempotent() {
+        final String btcTx = UUID.randomUUID().toString();
+        final DateTime now = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+        final Map<String, Long> amounts = ImmutableMap.<String, Long>of("addr1", 60000L, "addr2", 40000L);
+        dao.insertForward(btcTx, amounts, 1000L, 3, now);
+        // Retried after an ambiguous failure
+        dao.insertForward(btcTx, amounts, 1000L, 3, now);
+
+        final Forward forward = dao.getByBtcTransactionId(btcTx);
+        assertEquals(forward.getTargetAddress(), "addr1,addr2");
+        assertEquals(forward.getAmount(), 100000L);
+        final List<ForwardOutput> outputs = dao.getOutputs(btcTx);
+        assertEquals(outputs.size(), 2);
+        assertEquals(outputs.get(0).getTargetAddress(), "addr1");
+        assertEquals(outputs.get(0).getAmount(), 60000L);
+        assertEquals(outputs.get(1).getTargetAddress(), "addr2");
+        assertEquals(outputs.get(1).getAmount(), 40000L);
+        assertEquals(forward.getFee(), 1000L);
+        assertEquals(forward.getNbInputs(), 3);
+        assertEquals(forward.getConfirmationDepth(), 0);
+        assertEquals(dao.getForwards(now.minusDays(1), now.plusDays(1), 10).size(), 1);
+    }
+
+    @Test(groups = "sql")
+    public void testInFlightForwards() {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final String unconfirmed = UUID.randomUUID().toString();
+        final String confirmed = UUID.randomUUID().toString();
+        final String dead = UUID.randomUUID().toString();
+        dao.insertForward(unconfirmed, ONE_SATOSHI, 1L, 1, now);
+        dao.insertForward(confirmed, ONE_SATOSHI, 1L, 1, now);
+        dao.insertForward(dead, ONE_SATOSHI, 1L, 1, now);
+        assertEquals(dao.getInFlightForwards(6).size(), 3);
+
+        dao.updateConfirmationDepths(ImmutableMap.<Forward, Integer>of(dao.getByBtcTransactionId(unconfirmed), 2,
+                                                                       dao.getByBtcTransactionId(confirmed), 6,
+                                                                       dao.getByBtcTransactionId(dead), -1),
+                                     now);
+
+        final List<Forward> inFlight = dao.getInFlightForwards(6);
+        assertEquals(inFlight.size(), 1);
+        assertEquals(inFlight.get(0).getBtcTxHash(), unconfirmed);
+        assertEquals(inFlight.get(0).getConfirmationDepth(), 2);
+        assertEquals(dao.getByBtcTransactionId(dead).getConfirmationDepth(), -1);
+    }
+
+    @Test(groups = "sql")
+    public void testHistory() {
+        final DateTime now = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+        final String older = UUID.randomUUID().toString();
+        final String newer = UUID.randomUUID().toString();
+        dao.insertForward(older, ONE_SATOSHI, 1L, 1, now.minusHours(2));
+        dao.insertForward(newer, ONE_SATOSHI, 1L, 1, now.minusHours(1));
+        dao.insertForward(UUID.randomUUID().toString(), ONE_SATOSHI, 1L, 1, now.minusDays(2));
+
+        final List<Forward> history = dao.getForwards(now.minusDays(1), now, 10);
+        assertEquals(history.size(), 2);
+        assertEquals(history.get(0).getBtcTxHash(), newer);
+        assertEquals(history.get(1).getBtcTxHash(), older);
+        assertEquals(dao.getForwards(now.minusDays(1), now, 1).size(), 1);
+        Assert.assertNull(dao.getByBtcTransactionId(UUID.randomUUID().toString()));
+    }
+
+    private void cleanupTable() throws SQLException {
+        final Connection conn = dataSource.getConnection();
+        final PreparedStatement st = conn.prepareStatement("truncate table btc_forwards");
+        final PreparedStatement outputsSt = conn.prepareStatement("truncate table btc_forward_outputs");
+        try {
+            st.execute();
+            outputsSt.execute();
+        } finally {
+            st.close();
+            outputsSt.close();
+            conn.close();
+        }
+    }
+
+    private DataSource createDataSource() {
+        final MysqlDataSource ds = new MysqlDataSource();
+        ds.setServerName("localhost");
+        ds.setPortNumber(3306);
+        ds.setDatabaseName("killbill");
+        ds.setUser("root");
+        ds.setPassword("root");
+        return ds;
+    }
+}
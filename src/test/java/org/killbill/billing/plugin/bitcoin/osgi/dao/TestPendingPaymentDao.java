@@ -20,17 +20,24 @@ package org.killbill.billing.plugin.bitcoin.osgi.dao;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.bitcoin.osgi.NotificationRetry;
 import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
 import org.testng.Assert;
 import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
 
 import static org.testng.Assert.assertEquals;
@@ -43,7 +50,7 @@ public class TestPendingPaymentDao {
     @BeforeSuite(groups = "sql")
     public void setup() {
         dataSource = createDataSource();
-        dao = new PendingPaymentDao(dataSource);
+        dao = new PendingPaymentDao(new BitcoinDBI(dataSource));
     }
 
     @BeforeTest(groups = "sql")
@@ -85,6 +92,174 @@ public class TestPendingPaymentDao {
 
     }
 
+    @Test(groups = "sql")
+    public void testIndex() {
+        dao.loadIndex();
+
+        final PendingPayment p1 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, "45678");
+        dao.insertPendingPayment(p1);
+
+        final String bitcoinTransactionId = UUID.randomUUID().toString();
+        Assert.assertNull(dao.getByBtcTransactionId(bitcoinTransactionId));
+
+        final PendingPayment inserted = findPayment(p1.getPaymentId(), dao.getAllPendingPayments());
+        dao.update(inserted.getRecordId(), bitcoinTransactionId);
+        final PendingPayment p1Get = dao.getByBtcTransactionId(bitcoinTransactionId);
+        assertEquals(p1Get.getPaymentId(), p1.getPaymentId());
+
+        dao.removePendingPayment(p1.getPaymentId());
+        Assert.assertNull(dao.getByBtcTransactionId(bitcoinTransactionId));
+    }
+
+    @Test(groups = "sql")
+    public void testGetByBtcTransactionIds() {
+        final PendingPayment p1 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID().toString(), "56789");
+        dao.insertPendingPayment(p1);
+        final PendingPayment p2 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID().toString(), "67890");
+        dao.insertPendingPayment(p2);
+
+        final List<PendingPayment> found = dao.getByBtcTransactionIds(ImmutableList.<String>of(p1.getBtcTxHash(), UUID.randomUUID().toString(), p2.getBtcTxHash()));
+        assertEquals(found.size(), 2);
+        assertFoundPayment(p1, found);
+        assertFoundPayment(p2, found);
+
+        assertEquals(dao.getByBtcTransactionIds(ImmutableList.<String>of()).size(), 0);
+    }
+
+    @Test(groups = "sql")
+    public void testBatch() {
+        final PendingPayment p1 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, "78901");
+        final PendingPayment p2 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, "89012");
+        dao.insertPendingPayments(ImmutableList.<PendingPayment>of(p1, p2));
+
+        final List<PendingPayment> all = dao.getAllPendingPayments();
+        final String btcTx1 = UUID.randomUUID().toString();
+        final String btcTx2 = UUID.randomUUID().toString();
+        dao.updateTxHashes(ImmutableMap.<Integer, String>of(findPayment(p1.getPaymentId(), all).getRecordId(), btcTx1,
+                                                            findPayment(p2.getPaymentId(), all).getRecordId(), btcTx2));
+        assertEquals(dao.getByBtcTransactionId(btcTx1).getPaymentId(), p1.getPaymentId());
+        assertEquals(dao.getByBtcTransactionId(btcTx2).getPaymentId(), p2.getPaymentId());
+
+        dao.removePendingPayments(ImmutableList.<UUID>of(p1.getPaymentId(), p2.getPaymentId()));
+        Assert.assertNull(dao.getByBtcTransactionId(btcTx1));
+        Assert.assertNull(dao.getByBtcTransactionId(btcTx2));
+    }
+
+    @Test(groups = "sql")
+    public void testStream() {
+        final UUID tenantId = UUID.randomUUID();
+        final List<PendingPayment> payments = new ArrayList<PendingPayment>();
+        for (int i = 0; i < 5; i++) {
+            payments.add(new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), i % 2 == 0 ? tenantId : UUID.randomUUID(), null, "stream-" + i));
+        }
+        dao.insertPendingPayments(payments);
+
+        final List<PendingPayment> streamed = ImmutableList.<PendingPayment>copyOf(dao.streamPendingPayments(2));
+        assertEquals(streamed.size(), dao.getAllPendingPayments().size());
+        for (int i = 1; i < streamed.size(); i++) {
+            Assert.assertTrue(streamed.get(i - 1).getRecordId() < streamed.get(i).getRecordId());
+        }
+        for (final PendingPayment payment : payments) {
+            findPayment(payment.getPaymentId(), streamed);
+        }
+
+        final List<PendingPayment> streamedForTenant = ImmutableList.<PendingPayment>copyOf(dao.streamPendingPayments(tenantId, 2));
+        assertEquals(streamedForTenant.size(), 3);
+        for (final PendingPayment payment : streamedForTenant) {
+            assertEquals(payment.getTenantId(), tenantId);
+        }
+    }
+
+    @Test(groups = "sql")
+    public void testIdempotentInsert() {
+        final AtomicInteger nbInserted = new AtomicInteger();
+        dao.addListener(new PendingPaymentListener() {
+            @Override
+            public void onInserted(final PendingPayment payment) {
+                nbInserted.incrementAndGet();
+            }
+
+            @Override
+            public void onUpdated(final PendingPayment payment) {
+            }
+
+            @Override
+            public void onRemoved(final UUID paymentId) {
+            }
+        });
+
+        final String btcTx = UUID.randomUUID().toString();
+        final PendingPayment p1 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), btcTx, "idempotent-1");
+        dao.insertPendingPayment(p1);
+        // Bus redeliveries
+        dao.insertPendingPayment(p1);
+        dao.insertPendingPayments(ImmutableList.<PendingPayment>of(p1));
+        assertEquals(nbInserted.get(), 1);
+        assertEquals(countPayments(p1.getPaymentId()), 1);
+
+        // Same transaction, different payment: not swallowed
+        final PendingPayment p2 = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), btcTx, "idempotent-2");
+        try {
+            dao.insertPendingPayment(p2);
+            Assert.fail("Duplicate btc_tx should be rejected");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(nbInserted.get(), 1);
+        assertEquals(countPayments(p2.getPaymentId()), 0);
+        assertEquals(dao.getByBtcTransactionId(btcTx).getPaymentId(), p1.getPaymentId());
+
+        dao.removePendingPayment(p1.getPaymentId());
+    }
+
+    @Test(groups = "sql")
+    public void testRemovalIsNotReconciled() {
+        final NotificationRetryDao retryDao = new NotificationRetryDao(new BitcoinDBI(dataSource));
+        final PendingPayment paid = new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID().toString(), "removal");
+        dao.insertPendingPayment(paid);
+        findPayment(paid.getPaymentId(), dao.getPaidPendingPaymentsPage(0, Integer.MAX_VALUE));
+
+        // Kill Bill was notified but the payment could not be removed
+        retryDao.insertRemoval(paid, new DateTime(DateTimeZone.UTC));
+        for (final PendingPayment cur : dao.getPaidPendingPaymentsPage(0, Integer.MAX_VALUE)) {
+            Assert.assertFalse(cur.getPaymentId().equals(paid.getPaymentId()));
+        }
+        NotificationRetry removal = null;
+        for (final NotificationRetry cur : retryDao.getRemovals(Integer.MAX_VALUE)) {
+            if (cur.getPaymentId().equals(paid.getPaymentId())) {
+                removal = cur;
+            }
+        }
+        Assert.assertNotNull(removal);
+        // Not retried
+        for (final NotificationRetry cur : retryDao.getDueRetries(new DateTime(DateTimeZone.UTC).plusDays(1), Integer.MAX_VALUE)) {
+            Assert.assertFalse(cur.getPaymentId().equals(paid.getPaymentId()));
+        }
+
+        dao.removePendingPayment(paid.getPaymentId());
+        retryDao.removeRetries(ImmutableList.<NotificationRetry>of(removal));
+    }
+
+    private int countPayments(final UUID paymentId) {
+        int count = 0;
+        for (final PendingPayment cur : dao.getAllPendingPayments()) {
+            if (cur.getPaymentId().equals(paymentId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private PendingPayment findPayment(final UUID paymentId, final List<PendingPayment> all) {
+        for (PendingPayment cur : all) {
+            if (cur.getPaymentId().equals(paymentId)) {
+                return cur;
+            }
+        }
+        Assert.fail("Failed to find payment " + paymentId);
+        return null;
+    }
+
     private void assertFoundPayment(final PendingPayment input, final List<PendingPayment> all) {
         for (PendingPayment cur : all) {
             if (cur.equals(input)) {
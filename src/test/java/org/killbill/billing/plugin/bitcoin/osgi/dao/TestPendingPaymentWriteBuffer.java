@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPendingPaymentWriteBuffer {
+
+    @Test(groups = "fast")
+    public void testBatchedWrite() throws Exception {
+        final FailingPendingPaymentDao dao = new FailingPendingPaymentDao(null);
+        final PendingPaymentWriteBuffer writeBuffer = new PendingPaymentWriteBuffer(dao, 2, TimeUnit.HOURS.toMillis(1));
+
+        final ListenableFuture<Void> f1 = writeBuffer.add(newPayment("1"));
+        Assert.assertFalse(f1.isDone());
+        final ListenableFuture<Void> f2 = writeBuffer.add(newPayment("2"));
+
+        // Batch full, written by the caller
+        Assert.assertNull(f1.get(1, TimeUnit.SECONDS));
+        Assert.assertNull(f2.get(1, TimeUnit.SECONDS));
+        assertEquals(dao.inserted.size(), 2);
+        writeBuffer.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testFailedInsertIsReported() throws Exception {
+        final FailingPendingPaymentDao dao = new FailingPendingPaymentDao("bad");
+        final PendingPaymentWriteBuffer writeBuffer = new PendingPaymentWriteBuffer(dao, 10, 10);
+
+        final ListenableFuture<Void> good = writeBuffer.add(newPayment("good"));
+        final ListenableFuture<Void> bad = writeBuffer.add(newPayment("bad"));
+        Assert.assertNull(good.get(5, TimeUnit.SECONDS));
+        try {
+            bad.get(5, TimeUnit.SECONDS);
+            Assert.fail("Insert failure should be reported");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(dao.inserted.size(), 1);
+        assertEquals(dao.inserted.get(0).getBtcContractId(), "good");
+
+        try {
+            writeBuffer.addAndWait(newPayment("bad"));
+            Assert.fail("Insert failure should be rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "Simulated insert failure");
+        }
+        writeBuffer.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testWriteAfterStop() throws Exception {
+        final FailingPendingPaymentDao dao = new FailingPendingPaymentDao(null);
+        final PendingPaymentWriteBuffer writeBuffer = new PendingPaymentWriteBuffer(dao, 10, TimeUnit.HOURS.toMillis(1));
+        writeBuffer.stop();
+
+        writeBuffer.addAndWait(newPayment("late"));
+        assertEquals(dao.inserted.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testSingleWaitingCallerIsNotDelayed() throws Exception {
+        final FailingPendingPaymentDao dao = new FailingPendingPaymentDao(null);
+        final PendingPaymentWriteBuffer writeBuffer = new PendingPaymentWriteBuffer(dao, 10, TimeUnit.HOURS.toMillis(1));
+
+        final long startMs = System.currentTimeMillis();
+        writeBuffer.addAndWait(newPayment("alone"));
+        // Written right away, not after the flush interval
+        Assert.assertTrue(System.currentTimeMillis() - startMs < TimeUnit.SECONDS.toMillis(10));
+        assertEquals(dao.inserted.size(), 1);
+        assertEquals(dao.batchSizes, ImmutableList.<Integer>of(1));
+        writeBuffer.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentWaitingCallersAreCoalesced() throws Exception {
+        final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        final FailingPendingPaymentDao dao = new FailingPendingPaymentDao(null) {
+            @Override
+            public void insertPendingPayments(final List<PendingPayment> payments) {
+                if (firstBatchStarted.getCount() > 0) {
+                    firstBatchStarted.countDown();
+                    await(releaseFirstBatch);
+                }
+                super.insertPendingPayments(payments);
+            }
+        };
+        final PendingPaymentWriteBuffer writeBuffer = new PendingPaymentWriteBuffer(dao, 10, TimeUnit.HOURS.toMillis(1));
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        threads.add(addAndWaitInThread(writeBuffer, newPayment("1")));
+        Assert.assertTrue(firstBatchStarted.await(10, TimeUnit.SECONDS));
+        // Buffered while the first write is in progress
+        threads.add(addAndWaitInThread(writeBuffer, newPayment("2")));
+        threads.add(addAndWaitInThread(writeBuffer, newPayment("3")));
+        while (writeBuffer.getNbBuffered() < 2) {
+            Thread.sleep(10);
+        }
+
+        releaseFirstBatch.countDown();
+        for (final Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(dao.inserted.size(), 3);
+        assertEquals(dao.batchSizes, ImmutableList.<Integer>of(1, 2));
+        writeBuffer.stop();
+    }
+
+    private Thread addAndWaitInThread(final PendingPaymentWriteBuffer writeBuffer, final PendingPayment payment) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffer.addAndWait(payment);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PendingPayment newPayment(final String contractId) {
+        return new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, contractId);
+    }
+
+    // Fails the inserts of the payments with the given contract id, the database is never reached
+    private static class FailingPendingPaymentDao extends PendingPaymentDao {
+
+        private final String failingContractId;
+        private final List<PendingPayment> inserted;
+        private final List<Integer> batchSizes;
+
+        private FailingPendingPaymentDao(final String failingContractId) {
+            super(new DBI(new ConnectionFactory() {
+                @Override
+                public Connection openConnection() throws SQLException {
+                    throw new SQLException("No database in this test");
+                }
+            }));
+            this.failingContractId = failingContractId;
+            this.inserted = new ArrayList<PendingPayment>();
+            this.batchSizes = new ArrayList<Integer>();
+        }
+
+        @Override
+        public synchronized void insertPendingPayment(final PendingPayment payment) {
+            if (payment.getBtcContractId().equals(failingContractId)) {
+                throw new IllegalStateException("Simulated insert failure");
+            }
+            inserted.add(payment);
+        }
+
+        @Override
+        public synchronized void insertPendingPayments(final List<PendingPayment> payments) {
+            batchSizes.add(payments.size());
+            for (final PendingPayment payment : payments) {
+                if (payment.getBtcContractId().equals(failingContractId)) {
+                    throw new IllegalStateException("Simulated batch insert failure");
+                }
+            }
+            inserted.addAll(payments);
+        }
+    }
+}
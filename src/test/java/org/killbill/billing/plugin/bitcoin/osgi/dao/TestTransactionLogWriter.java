@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.bitcoin.osgi.BitcoinTestUtils;
+import org.killbill.billing.plugin.bitcoin.osgi.TransactionLog;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestTransactionLogWriter {
+
+    @Test(groups = "fast")
+    public void testSyncFailureIsRethrown() {
+        final RecordingTransactionLogDao dao = new RecordingTransactionLogDao(true);
+        final TransactionLogWriter writer = new TransactionLogWriter(dao, TransactionLogWriter.Mode.SYNC, 10, 100);
+        writer.start();
+
+        try {
+            writer.append(newLog());
+            Assert.fail("The insert failure should be rethrown to the caller");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "Simulated insert failure");
+        }
+        assertEquals(writer.getFailed(), 1);
+        assertEquals(writer.getWritten(), 0);
+        writer.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testOverflowFailureIsRethrown() throws Exception {
+        final RecordingTransactionLogDao dao = new RecordingTransactionLogDao(true);
+        // The flusher only wakes up once an hour, so that the buffer stays full
+        final TransactionLogWriter writer = new TransactionLogWriter(dao, TransactionLogWriter.Mode.INTERVAL, 1, 3600000);
+        writer.start();
+
+        writer.append(newLog());
+        try {
+            writer.append(newLog());
+            Assert.fail("The insert failure of the overflowing log should be rethrown to the caller");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "Simulated insert failure");
+        }
+        assertEquals(writer.getOverflows(), 1);
+        assertEquals(writer.getFailed(), 1);
+
+        // The buffered log is written by the background thread, whose failures are only counted
+        writer.stop();
+        assertEquals(writer.getFailed(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testBufferedLogsAreWritten() {
+        final RecordingTransactionLogDao dao = new RecordingTransactionLogDao(false);
+        final TransactionLogWriter writer = new TransactionLogWriter(dao, TransactionLogWriter.Mode.INTERVAL, 10, 3600000);
+        writer.start();
+
+        writer.append(newLog());
+        writer.append(newLog());
+        assertEquals(dao.inserted.size(), 0);
+
+        writer.stop();
+        assertEquals(dao.inserted.size(), 2);
+        assertEquals(writer.getWritten(), 2);
+        assertEquals(writer.getFailed(), 0);
+    }
+
+    private TransactionLog newLog() {
+        return new TransactionLog(new DateTime(DateTimeZone.UTC), "test", UUID.randomUUID(), null, UUID.randomUUID());
+    }
+
+    // The database is never reached
+    private static final class RecordingTransactionLogDao extends TransactionLogDao {
+
+        private final boolean isFailing;
+        private final List<TransactionLog> inserted;
+
+        private RecordingTransactionLogDao(final boolean isFailing) {
+            super(BitcoinTestUtils.noDatabase());
+            this.isFailing = isFailing;
+            this.inserted = new ArrayList<TransactionLog>();
+        }
+
+        @Override
+        public synchronized void insertTransactionLogs(final List<TransactionLog> logs) {
+            if (isFailing) {
+                throw new IllegalStateException("Simulated insert failure");
+            }
+            inserted.addAll(logs);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.http;
+
+import java.util.UUID;
+
+import org.killbill.billing.plugin.bitcoin.osgi.PendingPayment;
+import org.killbill.billing.plugin.bitcoin.osgi.http.PaymentRequestCache.CachedPaymentRequest;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPaymentRequestCache {
+
+    private static final String CONTRACT_ID = UUID.randomUUID().toString();
+    private static final String VARIANT = "main http://localhost/plugins/killbill-bitcoin/payment";
+
+    private PaymentRequestCache cache;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        cache = new PaymentRequestCache(100, 60000);
+    }
+
+    @Test(groups = "fast")
+    public void testHitForSameVariant() {
+        final CachedPaymentRequest cached = cache.put(CONTRACT_ID, VARIANT, UUID.randomUUID(), body("request"), cache.getGeneration());
+
+        Assert.assertSame(cache.get(CONTRACT_ID, VARIANT), cached);
+        Assert.assertTrue(cache.isCurrent(CONTRACT_ID, cached));
+        // Another network or payment URL is built again
+        Assert.assertNull(cache.get(CONTRACT_ID, "test " + VARIANT));
+        Assert.assertNull(cache.get(UUID.randomUUID().toString(), VARIANT));
+    }
+
+    @Test(groups = "fast")
+    public void testEtagAndNotModified() {
+        final CachedPaymentRequest cached = cache.put(CONTRACT_ID, VARIANT, null, body("request"), cache.getGeneration());
+        final String etag = cached.getEtag();
+
+        Assert.assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        assertEquals(cache.put(CONTRACT_ID, VARIANT, null, body("request"), cache.getGeneration()).getEtag(), etag);
+        Assert.assertFalse(cache.put(CONTRACT_ID, VARIANT, null, body("other request"), cache.getGeneration()).getEtag().equals(etag));
+
+        // 304 when the client already has this body
+        Assert.assertTrue(cached.isNotModified(etag));
+        Assert.assertTrue(cached.isNotModified("\"stale\", " + etag));
+        Assert.assertTrue(cached.isNotModified("*"));
+        // 200 otherwise
+        Assert.assertFalse(cached.isNotModified(null));
+        Assert.assertFalse(cached.isNotModified("\"stale\""));
+        Assert.assertFalse(cached.isNotModified(etag.substring(1, etag.length() - 1)));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidatedByPaymentChanges() {
+        final UUID paymentId = UUID.randomUUID();
+        final PendingPayment payment = new PendingPayment(paymentId, UUID.randomUUID(), UUID.randomUUID(), null, CONTRACT_ID);
+
+        final CachedPaymentRequest cached = cache.put(CONTRACT_ID, VARIANT, null, body("no invoice"), cache.getGeneration());
+        cache.onInserted(payment);
+        Assert.assertNull(cache.get(CONTRACT_ID, VARIANT));
+        Assert.assertFalse(cache.isCurrent(CONTRACT_ID, cached));
+
+        cache.put(CONTRACT_ID, VARIANT, paymentId, body("invoice"), cache.getGeneration());
+        cache.onUpdated(payment);
+        Assert.assertNull(cache.get(CONTRACT_ID, VARIANT));
+
+        cache.put(CONTRACT_ID, VARIANT, paymentId, body("invoice"), cache.getGeneration());
+        cache.onRemoved(paymentId);
+        Assert.assertNull(cache.get(CONTRACT_ID, VARIANT));
+    }
+
+    @Test(groups = "fast")
+    public void testStaleBuildIsNotCached() {
+        final long generation = cache.getGeneration();
+        // A payment changed while the response was being built
+        cache.onInserted(new PendingPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, UUID.randomUUID().toString()));
+
+        final CachedPaymentRequest built = cache.put(CONTRACT_ID, VARIANT, null, body("stale"), generation);
+
+        Assert.assertNotNull(built.getEtag());
+        Assert.assertNull(cache.get(CONTRACT_ID, VARIANT));
+    }
+
+    private static byte[] body(final String content) {
+        return content.getBytes(Charsets.UTF_8);
+    }
+}
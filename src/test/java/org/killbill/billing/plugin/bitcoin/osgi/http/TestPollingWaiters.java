@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.bitcoin.osgi.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPollingWaiters {
+
+    private static final String CONTRACT_ID = "contract";
+
+    @Test(groups = "fast")
+    public void testWakeResumesParkedPolls() {
+        final PollingWaiters waiters = new PollingWaiters(10);
+        final StubAsyncContext first = new StubAsyncContext();
+        final StubAsyncContext second = new StubAsyncContext();
+        waiters.park(CONTRACT_ID, first, 1000);
+        waiters.park(CONTRACT_ID, second, 1000);
+        waiters.park("other", new StubAsyncContext(), 1000);
+        assertEquals(waiters.getNbParked(), 3);
+
+        waiters.wake(CONTRACT_ID);
+
+        assertEquals(first.dispatched.get(), 1);
+        assertEquals(second.dispatched.get(), 1);
+        assertEquals(waiters.getNbParked(), 1);
+        assertEquals(waiters.getNbContracts(), 1);
+
+        // Resumed exactly once
+        waiters.wake(CONTRACT_ID);
+        assertEquals(first.dispatched.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testLastWaiterLeavingRemovesContract() throws IOException {
+        final PollingWaiters waiters = new PollingWaiters(10);
+        final StubAsyncContext timedOut = new StubAsyncContext();
+        final StubAsyncContext completed = new StubAsyncContext();
+        waiters.park(CONTRACT_ID, timedOut, 1000);
+        waiters.park(CONTRACT_ID, completed, 1000);
+
+        timedOut.listener.onTimeout(null);
+        assertEquals(timedOut.dispatched.get(), 1);
+        assertEquals(waiters.getNbContracts(), 1);
+
+        completed.listener.onComplete(null);
+        assertEquals(completed.dispatched.get(), 0);
+        assertEquals(waiters.getNbParked(), 0);
+        assertEquals(waiters.getNbContracts(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentParkAndWakeNeverOrphansAPoll() throws Exception {
+        final int nbThreads = 8;
+        final int nbPolls = 2000;
+        final PollingWaiters waiters = new PollingWaiters(nbThreads * nbPolls);
+        final List<StubAsyncContext> contexts = new ArrayList<StubAsyncContext>();
+        for (int i = 0; i < nbThreads * nbPolls; i++) {
+            contexts.add(new StubAsyncContext());
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2 * nbThreads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int t = 0; t < nbThreads; t++) {
+                final int offset = t * nbPolls;
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        for (int i = 0; i < nbPolls; i++) {
+                            waiters.park(CONTRACT_ID, contexts.get(offset + i), 1000);
+                        }
+                    }
+                });
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        for (int i = 0; i < nbPolls; i++) {
+                            waiters.wake(CONTRACT_ID);
+                        }
+                    }
+                });
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // Every poll still parked must be reachable through the map
+        waiters.stop();
+
+        for (final StubAsyncContext context : contexts) {
+            assertEquals(context.dispatched.get(), 1);
+        }
+        assertEquals(waiters.getNbParked(), 0);
+        assertEquals(waiters.getNbContracts(), 0);
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class StubAsyncContext implements AsyncContext {
+
+        private final AtomicInteger dispatched = new AtomicInteger();
+        private volatile AsyncListener listener;
+
+        @Override
+        public void addListener(final AsyncListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void dispatch() {
+            dispatched.incrementAndGet();
+        }
+
+        @Override
+        public void setTimeout(final long timeout) {
+        }
+
+        @Override
+        public ServletRequest getRequest() {
+            return null;
+        }
+
+        @Override
+        public ServletResponse getResponse() {
+            return null;
+        }
+
+        @Override
+        public boolean hasOriginalRequestAndResponse() {
+            return true;
+        }
+
+        @Override
+        public void dispatch(final String path) {
+            dispatch();
+        }
+
+        @Override
+        public void dispatch(final ServletContext context, final String path) {
+            dispatch();
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Override
+        public void start(final Runnable run) {
+            run.run();
+        }
+
+        @Override
+        public void addListener(final AsyncListener listener, final ServletRequest servletRequest, final ServletResponse servletResponse) {
+            addListener(listener);
+        }
+
+        @Override
+        public <T extends AsyncListener> T createListener(final Class<T> clazz) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getTimeout() {
+            return 0;
+        }
+    }
+}